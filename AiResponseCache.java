@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sits in front of the AiScheduler. Replies are cached per model and normalized prompt in a
+// size-bounded LRU with an optional time-to-live. Identical prompts that arrive while the
+// model is still answering join that one invocation and receive the same streamed lines.
+//
+// Lock order: scheduler, then this cache, then an individual InFlight. The cache never calls
+// into the scheduler while holding its own lock.
+public class AiResponseCache {
+    private final AiScheduler scheduler;
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    // Guarded by this.
+    private final LinkedHashMap<String, CachedReply> entries;
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private final Map<Integer, InFlight> subscriptions = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    // maxEntries 0 disables caching (coalescing still applies); ttlSeconds 0 means no expiry.
+    public AiResponseCache(AiScheduler scheduler, int maxEntries, long ttlSeconds) {
+        this.scheduler = scheduler;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, CachedReply>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReply> eldest) {
+                if (size() > AiResponseCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public void request(int userId, String model, String prompt, AiScheduler.Listener listener) {
+        String key = model + '\u0000' + normalize(prompt);
+        CachedReply cached;
+        InFlight leader = null;
+        synchronized (this) {
+            if (subscriptions.containsKey(userId)) {
+                listener.onRejected("Your previous AI request is still running. Use \\cancel to stop it.");
+                return;
+            }
+            cached = lookup(key);
+            if (cached == null) {
+                InFlight running = inFlight.get(key);
+                if (running != null) {
+                    coalesced.incrementAndGet();
+                    subscriptions.put(userId, running);
+                    running.subscribe(userId, listener);
+                    return;
+                }
+                misses.incrementAndGet();
+                leader = new InFlight(key);
+                inFlight.put(key, leader);
+                subscriptions.put(userId, leader);
+                leader.subscribe(userId, listener);
+            }
+        }
+
+        if (cached != null) {
+            for (String line : cached.lines) {
+                listener.onLine(line);
+            }
+            listener.onDone(cached.response);
+        } else {
+            scheduler.submit(userId, model, prompt, leader);
+        }
+    }
+
+    // Drops the user's interest in their pending reply. The model keeps running while other
+    // users are still waiting for the same prompt; the user is then free to ask something else.
+    public void cancel(int userId) {
+        InFlight running;
+        boolean abandon;
+        synchronized (this) {
+            running = subscriptions.remove(userId);
+            if (running == null) {
+                return;
+            }
+            abandon = running.unsubscribe(userId);
+            if (abandon) {
+                inFlight.remove(running.key, running); // New requests must not join a job being killed.
+            }
+        }
+        if (abandon) {
+            scheduler.cancel(running);
+        } else {
+            scheduler.release(userId, running);
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public long expirations() {
+        return expirations.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public String toString() {
+        return "AI cache: " + hits + " hits, " + misses + " misses, " + coalesced + " coalesced, "
+                + evictions + " evicted, " + expirations + " expired, " + size() + " entries";
+    }
+
+    // Case, surrounding and repeated whitespace do not change the answer we want to reuse.
+    static String normalize(String prompt) {
+        return prompt.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    // Must hold this.
+    private CachedReply lookup(String key) {
+        CachedReply entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (ttlNanos > 0 && System.nanoTime() - entry.createdNanos > ttlNanos) {
+            entries.remove(key);
+            expirations.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    private synchronized void complete(InFlight running, List<String> lines, String response) {
+        inFlight.remove(running.key, running);
+        subscriptions.values().removeIf(subscription -> subscription == running);
+        if (lines != null && maxEntries > 0) {
+            entries.put(running.key, new CachedReply(lines, response));
+        }
+    }
+
+    private static class CachedReply {
+        final List<String> lines;
+        final String response;
+        final long createdNanos = System.nanoTime();
+
+        CachedReply(List<String> lines, String response) {
+            this.lines = lines;
+            this.response = response;
+        }
+    }
+
+    // One model invocation shared by every user who asked the same thing meanwhile. Lines
+    // are remembered so a user who joins late first gets what was already streamed.
+    private class InFlight implements AiScheduler.Listener {
+        final String key;
+        // Guarded by this.
+        private final Map<Integer, AiScheduler.Listener> subscribers = new LinkedHashMap<>();
+        private final List<String> lines = new ArrayList<>();
+        private int position;
+
+        InFlight(String key) {
+            this.key = key;
+        }
+
+        synchronized void subscribe(int userId, AiScheduler.Listener listener) {
+            subscribers.put(userId, listener);
+            if (position > 0) {
+                listener.onQueued(position);
+            }
+            for (String line : lines) {
+                listener.onLine(line);
+            }
+        }
+
+        // Returns true when nobody is left waiting, so the job itself can be cancelled.
+        synchronized boolean unsubscribe(int userId) {
+            AiScheduler.Listener listener = subscribers.remove(userId);
+            if (listener != null) {
+                listener.onCancelled();
+            }
+            return subscribers.isEmpty();
+        }
+
+        private synchronized List<AiScheduler.Listener> listeners() {
+            return new ArrayList<>(subscribers.values());
+        }
+
+        public void onRejected(String reason) {
+            complete(this, null, null);
+            for (AiScheduler.Listener listener : listeners()) {
+                listener.onRejected(reason);
+            }
+        }
+
+        public synchronized void onQueued(int position) {
+            this.position = position;
+            for (AiScheduler.Listener listener : subscribers.values()) {
+                listener.onQueued(position);
+            }
+        }
+
+        public synchronized void onLine(String line) {
+            position = 0;
+            lines.add(line);
+            for (AiScheduler.Listener listener : subscribers.values()) {
+                listener.onLine(line);
+            }
+        }
+
+        public void onDone(String response) {
+            List<String> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(lines);
+            }
+            complete(this, snapshot, response);
+            for (AiScheduler.Listener listener : listeners()) {
+                listener.onDone(response);
+            }
+        }
+
+        public void onError(String message) {
+            complete(this, null, null);
+            for (AiScheduler.Listener listener : listeners()) {
+                listener.onError(message);
+            }
+        }
+
+        public void onCancelled() {
+            complete(this, null, null);
+            for (AiScheduler.Listener listener : listeners()) {
+                listener.onCancelled();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs @ai / @math requests off the users' own threads. Every model has a FIFO queue and a cap
+// on how many of its processes run at once; the number of waiting jobs is bounded, and a user
+// has at most one job at a time so streamed replies never interleave. Output is streamed to the
+// listener line by line as the model prints it.
+public class AiScheduler {
+    // Callbacks for one job. They run on scheduler threads and must not block.
+    public interface Listener {
+        void onRejected(String reason);
+
+        // Position in the model's queue, 1 = next to run. Sent again whenever it changes.
+        void onQueued(int position);
+
+        void onLine(String line);
+
+        // Called once with the whole response after the last line has been streamed.
+        void onDone(String response);
+
+        void onError(String message);
+
+        void onCancelled();
+    }
+
+    private final List<String> command;
+    private final int maxQueued;
+    private final int concurrencyPerModel;
+    private final ExecutorService runners = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ai-runner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this.
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final Set<Integer> busyUsers = new HashSet<>();
+    private int queued;
+
+    // command is the model runner executable; jobs run "<command> run <model> <prompt>".
+    public AiScheduler(String command, int maxQueued, int concurrencyPerModel) {
+        this.command = new ArrayList<>();
+        for (String part : command.trim().split("\\s+")) {
+            this.command.add(part);
+        }
+        this.maxQueued = maxQueued;
+        this.concurrencyPerModel = Math.max(1, concurrencyPerModel);
+    }
+
+    public synchronized void submit(int userId, String model, String prompt, Listener listener) {
+        if (busyUsers.contains(userId)) {
+            listener.onRejected("Your previous AI request is still running. Use \\cancel to stop it.");
+            return;
+        }
+        Lane lane = lanes.computeIfAbsent(model, m -> new Lane());
+        Job job = new Job(userId, model, prompt, listener);
+        if (lane.running.size() < concurrencyPerModel) {
+            busyUsers.add(userId);
+            start(lane, job);
+        } else if (queued < maxQueued) {
+            busyUsers.add(userId);
+            lane.waiting.addLast(job);
+            queued++;
+            listener.onQueued(lane.waiting.size());
+        } else {
+            listener.onRejected("The AI queue is full, please try again later.");
+        }
+    }
+
+    // Cancels the job submitted with this listener, killing its model process if it runs.
+    public synchronized void cancel(Listener listener) {
+        for (Lane lane : lanes.values()) {
+            for (Iterator<Job> it = lane.waiting.iterator(); it.hasNext(); ) {
+                Job job = it.next();
+                if (job.listener == listener) {
+                    it.remove();
+                    queued--;
+                    busyUsers.remove(job.userId);
+                    announcePositions(lane);
+                    listener.onCancelled();
+                    return;
+                }
+            }
+            for (Job job : lane.running) {
+                if (job.listener == listener) {
+                    job.cancel();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Frees the user for a new request while the job submitted with this listener keeps going
+    // for others, e.g. a shared AI reply its submitter no longer waits for.
+    public synchronized void release(int userId, Listener listener) {
+        for (Lane lane : lanes.values()) {
+            for (Job job : lane.waiting) {
+                release(job, userId, listener);
+            }
+            for (Job job : lane.running) {
+                release(job, userId, listener);
+            }
+        }
+    }
+
+    private void release(Job job, int userId, Listener listener) {
+        if (job.listener == listener && job.userId == userId) {
+            busyUsers.remove(userId);
+            job.userId = -1;
+        }
+    }
+
+    // Jobs waiting for a free model slot, across all models.
+    public synchronized int queuedCount() {
+        return queued;
+    }
+
+    private void start(Lane lane, Job job) {
+        lane.running.add(job);
+        runners.execute(() -> run(job));
+    }
+
+    private void run(Job job) {
+        StringBuilder response = new StringBuilder();
+        try {
+            List<String> args = new ArrayList<>(command);
+            args.add("run");
+            args.add(job.model);
+            args.add(job.prompt);
+            ProcessBuilder pb = new ProcessBuilder(args);
+            pb.redirectError(ProcessBuilder.Redirect.DISCARD); // Progress spinner; unread it would stall the model.
+            Process process = pb.start();
+            if (!job.attach(process)) {
+                process.destroy();
+            }
+            process.getOutputStream().close();
+
+            BufferedReader stdReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = stdReader.readLine()) != null && !job.cancelled) {
+                response.append(line).append(" ");
+                job.listener.onLine(line);
+            }
+            process.waitFor();
+            if (job.cancelled) {
+                job.listener.onCancelled();
+            } else {
+                job.listener.onDone(response.toString().trim());
+            }
+        } catch (IOException | InterruptedException e) {
+            if (job.cancelled) {
+                job.listener.onCancelled();
+            } else {
+                e.printStackTrace();
+                job.listener.onError("Error calling AI model.");
+            }
+        } finally {
+            finish(job);
+        }
+    }
+
+    private synchronized void finish(Job job) {
+        Lane lane = lanes.get(job.model);
+        lane.running.remove(job);
+        if (job.userId != -1) {
+            busyUsers.remove(job.userId);
+        }
+        Job next = lane.waiting.pollFirst();
+        if (next != null) {
+            queued--;
+            start(lane, next);
+            announcePositions(lane);
+        }
+    }
+
+    private void announcePositions(Lane lane) {
+        int position = 1;
+        for (Job waiting : lane.waiting) {
+            waiting.listener.onQueued(position++);
+        }
+    }
+
+    private static class Lane {
+        final ArrayDeque<Job> waiting = new ArrayDeque<>();
+        final Set<Job> running = new HashSet<>();
+    }
+
+    private static class Job {
+        int userId; // -1 once released; guarded by the scheduler.
+        final String model;
+        final String prompt;
+        final Listener listener;
+        volatile boolean cancelled;
+        private Process process;
+
+        Job(int userId, String model, String prompt, Listener listener) {
+            this.userId = userId;
+            this.model = model;
+            this.prompt = prompt;
+            this.listener = listener;
+        }
+
+        // Returns false if the job was cancelled before its process started.
+        synchronized boolean attach(Process process) {
+            this.process = process;
+            return !cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (process != null) {
+                // Children first: a wrapper script's children would otherwise hold stdout open.
+                process.descendants().forEach(ProcessHandle::destroy);
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// The bus for production load. Callers only queue frames; one writer thread per node drains
+// everything queued since its last write into one buffered write and one flush, so a burst of
+// broadcasts costs a system call per node rather than one per message, and a slow node never
+// holds up the sender. A node more than MAX_QUEUED frames behind loses the excess.
+public class BatchingMessageBus extends TcpMessageBus {
+    private static final int MAX_QUEUED = 64 * 1024;
+
+    public BatchingMessageBus(int nodeId, Map<Integer, InetSocketAddress> addresses) {
+        super(nodeId, addresses);
+    }
+
+    public String name() {
+        return "batched";
+    }
+
+    protected Peer newPeer(int node, InetSocketAddress address) {
+        return new BatchingPeer(node, address);
+    }
+
+    private final class BatchingPeer extends Peer {
+        // Guarded by this; only filled while the link is up.
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+
+        BatchingPeer(int node, InetSocketAddress address) {
+            super(node, address);
+        }
+
+        void start() {
+            super.start();
+            daemon(this::writeLoop, "bus-writer-" + node);
+        }
+
+        synchronized boolean offer(byte[] frame) {
+            if (out == null || queue.size() >= MAX_QUEUED) {
+                return false;
+            }
+            queue.add(frame);
+            if (queue.size() == 1) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        synchronized void disconnect(OutputStream stream) {
+            super.disconnect(stream);
+            if (out == null) {
+                queue.clear();
+            }
+        }
+
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>();
+            while (!closed) {
+                OutputStream stream;
+                synchronized (this) {
+                    while (queue.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    batch.addAll(queue);
+                    queue.clear();
+                    stream = out;
+                }
+                try {
+                    for (byte[] frame : batch) {
+                        stream.write(frame);
+                    }
+                    stream.flush();
+                } catch (IOException e) {
+                    disconnect(stream);
+                }
+                batch.clear();
+            }
+        }
+    }
+}
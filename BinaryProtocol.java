@@ -0,0 +1,311 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional length-prefixed framing used instead of newline-terminated text once both sides
+// agree on it. Negotiation, all in text lines:
+//
+//   server -> client   OFFER   (first line after connecting, unless --protocol=text)
+//   client -> server   HELLO   (only as its very first line; every later byte is a frame)
+//   server -> client   ACK     (every later byte is a frame)
+//
+// A client that ignores the offer, or a server that never makes one, keeps the text protocol.
+//
+// Frame layout, big-endian:
+//
+//   int    length of the rest of the frame
+//   byte   type
+//   byte   flags (FLAG_DEFLATED: the payload is deflate-compressed)
+//   int    sender user ID (0 = the server)
+//   int    target user ID (0 = nobody in particular)
+//   long   sequence number, only with FLAG_SEQ: the message's line number in the receiving
+//          user's log, which a resuming client passes back in "\resume <token> <seq>"
+//   ...    payload, UTF-8
+//
+// Message text may contain newlines; when such a message goes to a text client they become
+// spaces (see OutboundMessage).
+public final class BinaryProtocol {
+    public static final String OFFER = "\\proto bin1?";
+    public static final String HELLO = "\\proto bin1";
+    public static final String ACK = "\\proto bin1 ok";
+
+    // A line in the text protocol's own form: notices, history, and commands without a type.
+    public static final byte TEXT = 0;
+    public static final byte GROUP = 1;
+    public static final byte PRIVATE = 2;
+    // Client: a prompt. Server: the first line of the reply.
+    public static final byte AI = 3;
+    public static final byte MATH = 4;
+    // Server: the next line of the AI reply being streamed.
+    public static final byte AI_MORE = 5;
+    // Client commands; the payload is empty.
+    public static final byte CLEAR = 6;
+    public static final byte MORE = 7;
+    public static final byte CANCEL = 8;
+    // Server: no payload; a logged message the client already shows (its own post, an AI
+    // reply it saw streamed) so the sequence number can be counted as seen.
+    public static final byte SEQ = 9;
+
+    public static final int FLAG_DEFLATED = 1;
+    public static final int FLAG_SEQ = 2;
+
+    static final int HEADER_LENGTH = 10;
+    // Length prefix, header and sequence number: the part of a frame with FLAG_SEQ in front of
+    // the payload.
+    static final int SEQ_HEADER_LENGTH = 4 + HEADER_LENGTH + 8;
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    // Smaller payloads are not worth a deflate pass; long AI replies and history lines are.
+    static final int COMPRESS_THRESHOLD = 512;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private BinaryProtocol() {
+    }
+
+    // One decoded frame.
+    public static final class Frame {
+        public final byte type;
+        public final int senderId;
+        public final int targetId;
+        // -1 when the frame carries no sequence number.
+        public final long seq;
+        public final String text;
+
+        Frame(byte type, int senderId, int targetId, long seq, String text) {
+            this.type = type;
+            this.senderId = senderId;
+            this.targetId = targetId;
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    // Encodes a complete frame, length prefix included.
+    public static byte[] encode(byte type, int senderId, int targetId, String text) {
+        return frame(type, senderId, targetId, -1, payload(text));
+    }
+
+    // Encodes the payload on its own, deflated when that pays off, with the flags byte in
+    // front. Lets one message go to many recipients with different sequence numbers while
+    // its text is encoded only once.
+    static byte[] payload(String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length >= COMPRESS_THRESHOLD) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(utf8);
+            deflater.finish();
+            byte[] compressed = new byte[utf8.length];
+            int n = deflater.deflate(compressed, 1, compressed.length - 1);
+            if (deflater.finished() && n + 1 < utf8.length) {
+                compressed[0] = FLAG_DEFLATED;
+                return Arrays.copyOf(compressed, n + 1);
+            }
+        }
+        byte[] payload = new byte[utf8.length + 1];
+        System.arraycopy(utf8, 0, payload, 1, utf8.length);
+        return payload;
+    }
+
+    // Builds a frame around a payload from payload(); seq -1 leaves the sequence number out.
+    static byte[] frame(byte type, int senderId, int targetId, long seq, byte[] payload) {
+        int flags = payload[0] | (seq >= 0 ? FLAG_SEQ : 0);
+        int bodyLength = HEADER_LENGTH + (seq >= 0 ? 8 : 0) + payload.length - 1;
+        byte[] frame = new byte[4 + bodyLength];
+        putInt(frame, 0, bodyLength);
+        frame[4] = type;
+        frame[5] = (byte) flags;
+        putInt(frame, 6, senderId);
+        putInt(frame, 10, targetId);
+        int offset = 14;
+        if (seq >= 0) {
+            putInt(frame, 14, (int) (seq >>> 32));
+            putInt(frame, 18, (int) seq);
+            offset = 22;
+        }
+        System.arraycopy(payload, 1, frame, offset, payload.length - 1);
+        return frame;
+    }
+
+    // Copies the front of a frame built with a sequence number, up to the payload, and puts
+    // seq in it. The payload can then come from the original frame.
+    static byte[] seqHeader(byte[] frame, long seq) {
+        byte[] header = Arrays.copyOf(frame, SEQ_HEADER_LENGTH);
+        putInt(header, 14, (int) (seq >>> 32));
+        putInt(header, 18, (int) seq);
+        return header;
+    }
+
+    // Decodes the part of a frame after its length prefix.
+    public static Frame decode(byte[] bytes, int offset, int length) throws IOException {
+        if (length < HEADER_LENGTH) {
+            throw new IOException("Frame shorter than its header");
+        }
+        byte type = bytes[offset];
+        int flags = bytes[offset + 1];
+        int senderId = getInt(bytes, offset + 2);
+        int targetId = getInt(bytes, offset + 6);
+        int payloadOffset = offset + HEADER_LENGTH;
+        int payloadLength = length - HEADER_LENGTH;
+        long seq = -1;
+        if ((flags & FLAG_SEQ) != 0) {
+            if (payloadLength < 8) {
+                throw new IOException("Frame too short for its sequence number");
+            }
+            seq = (long) getInt(bytes, payloadOffset) << 32 | (getInt(bytes, payloadOffset + 4) & 0xffffffffL);
+            payloadOffset += 8;
+            payloadLength -= 8;
+        }
+        String text;
+        if ((flags & FLAG_DEFLATED) != 0) {
+            text = inflate(bytes, payloadOffset, payloadLength);
+        } else {
+            text = new String(bytes, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+        }
+        return new Frame(type, senderId, targetId, seq, text);
+    }
+
+    // Turns what a user typed, in text-protocol syntax, into the equivalent frame. Input the
+    // client cannot classify goes as TEXT and the server parses it as a line.
+    public static byte[] encodeInput(String input) {
+        String trimmed = input.trim();
+        switch (trimmed) {
+            case "\\clear":
+                return encode(CLEAR, 0, 0, "");
+            case "\\more":
+                return encode(MORE, 0, 0, "");
+            case "\\cancel":
+                return encode(CANCEL, 0, 0, "");
+            default:
+                break;
+        }
+        if (!trimmed.startsWith("@")) {
+            // Commands and #room posts are parsed by the server.
+            return encode(trimmed.startsWith("\\") || trimmed.startsWith("#") ? TEXT : GROUP, 0, 0, trimmed);
+        }
+        if (trimmed.regionMatches(true, 0, "@math", 0, 5)) {
+            return encode(MATH, 0, 0, trimmed.substring(5).trim());
+        }
+        if (trimmed.regionMatches(true, 0, "@ai", 0, 3)) {
+            return encode(AI, 0, 0, trimmed.substring(3).trim());
+        }
+        int space = trimmed.indexOf(' ');
+        if (space > 1) {
+            try {
+                int targetId = Integer.parseInt(trimmed.substring(1, space));
+                return encode(PRIVATE, 0, targetId, trimmed.substring(space + 1));
+            } catch (NumberFormatException e) {
+                // Let the server report the bad ID.
+            }
+        }
+        return encode(TEXT, 0, 0, trimmed);
+    }
+
+    static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static String inflate(byte[] bytes, int offset, int length) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+        byte[] out = new byte[Math.min(MAX_FRAME_LENGTH, Math.max(64, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    if (out.length >= MAX_FRAME_LENGTH) {
+                        throw new IOException("Compressed payload over " + MAX_FRAME_LENGTH + " bytes");
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_FRAME_LENGTH));
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        return new String(out, 0, size, StandardCharsets.UTF_8);
+    }
+
+    // Reads text lines and, after the switch, frames from one stream. Used by the blocking
+    // engine and by the GUI client.
+    public static final class Input {
+        private final InputStream in;
+        private byte[] buffer = new byte[256];
+
+        public Input(InputStream in) {
+            this.in = new BufferedInputStream(in);
+        }
+
+        // Returns the next line without its line terminator, or null at end of stream.
+        public String readLine() throws IOException {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return length == 0 ? null : decodeLine(length);
+                }
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                }
+                buffer[length++] = (byte) b;
+            }
+            return decodeLine(length);
+        }
+
+        // Returns the next frame, or null if the stream ends cleanly between frames.
+        public Frame readFrame() throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            readFully(3);
+            int length = (first & 0xff) << 24 | (buffer[0] & 0xff) << 16 | (buffer[1] & 0xff) << 8 | (buffer[2] & 0xff);
+            if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            readFully(length);
+            return decode(buffer, 0, length);
+        }
+
+        private void readFully(int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(buffer, read, length - read);
+                if (n < 0) {
+                    throw new EOFException("Stream ended inside a frame");
+                }
+                read += n;
+            }
+        }
+
+        private String decodeLine(int length) {
+            if (length > 0 && buffer[length - 1] == '\r') {
+                length--;
+            }
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+// One blocking reader thread and one writer thread per connection. The thread factory decides
+// whether those are platform threads (the original model) or virtual threads.
+public class BlockingConnectionEngine implements ConnectionEngine {
+    private final String name;
+    private final ThreadFactory threads;
+
+    public BlockingConnectionEngine(String name, ThreadFactory threads) {
+        this.name = name;
+        this.threads = threads;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, ChatServer.ACCEPT_BACKLOG)) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                threads.newThread(() -> serveConnection(socket)).start();
+            }
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        ChatServer.ClientHandler handler = null;
+        SocketConnection connection = null;
+        try {
+            BinaryProtocol.Input in = new BinaryProtocol.Input(socket.getInputStream());
+            connection = new SocketConnection(socket);
+            threads.newThread(connection::writeLoop).start();
+            handler = ChatServer.register(connection);
+            handler.onConnect();
+
+            String input = in.readLine();
+            if (input != null && ChatServer.isFramesHello(input)) {
+                handler.startFrames();
+                BinaryProtocol.Frame frame;
+                while ((frame = in.readFrame()) != null) {
+                    handler.handleFrame(frame);
+                }
+            } else {
+                while (input != null) {
+                    handler.handleLine(input);
+                    input = in.readLine();
+                }
+            }
+        } catch (IOException e) {
+            // Connection reset or closed underneath us; treated like a normal disconnect.
+        } finally {
+            if (connection != null) {
+                connection.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (handler != null) {
+                handler.onDisconnect();
+            }
+        }
+    }
+
+    // Returns a virtual thread factory, or null when the running JVM has none (before Java 21).
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static class SocketConnection implements ClientConnection {
+        private final Socket socket;
+        private final OutboundQueue queue = ChatServer.newOutboundQueue();
+
+        SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void send(OutboundMessage message) {
+            if (!queue.offer(message)) {
+                System.out.println("Outbound queue full, disconnecting slow client " + socket.getRemoteSocketAddress());
+                close();
+            }
+        }
+
+        public void sendAndWait(OutboundMessage message) {
+            queue.put(message);
+        }
+
+        public int queuedMessages() {
+            return queue.size();
+        }
+
+        // Closing the socket also unblocks the reader thread, which then reports the disconnect.
+        public void close() {
+            queue.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Drains the queue into the socket, flushing whenever it runs dry so bursts go out
+        // in as few writes as possible. Switches to frames after writing the negotiation ACK.
+        void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                boolean frames = false;
+                OutboundMessage message;
+                while ((message = queue.take()) != null) {
+                    if (frames) {
+                        message.writeFrame(out);
+                    } else {
+                        out.write(message.bytes());
+                    }
+                    if (message.switchesToFrames()) {
+                        frames = true;
+                    }
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Peer went away; fall through and close.
+            } finally {
+                close();
+            }
+        }
+    }
+}
@@ -2,6 +2,10 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.text.DefaultEditorKit;
@@ -9,16 +13,56 @@ import javax.swing.text.DefaultEditorKit;
 public class ChatClientGUI {
     private static final String SERVER_ADDRESS = "127.0.0.1"; //127.0.0.1 //172.20.10.2// 192.168.97.138  192.168.6.138
     private static final int PORT = 12345;
+    // Oldest messages are dropped from the view beyond this; \more fetches them again.
+    private static final int MAX_MESSAGES = 2000;
+    private static final long RECONNECT_DELAY_MILLIS = 2000;
+    // Sequence numbers seen past a gap; beyond this many the gap is given up on.
+    private static final int MAX_AHEAD = 10_000;
     
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    // Replaced on every reconnect.
+    private volatile Socket socket;
+    private volatile OutputStream out;
+    private BinaryProtocol.Input in;
+    // Output state, guarded by out: frames once we answered the server's offer, which is
+    // only allowed before anything else was sent.
+    private boolean framesOut = false;
+    private boolean sentAnything = false;
     
     private JFrame frame;
-    private JPanel chatPanel;
+    private final MessageListModel messages = new MessageListModel();
+    private JList<ChatLine> chatList;
     private JScrollPane chatScrollPane;
     private JTextArea inputArea;
     private JButton sendButton;
+    private JButton olderButton;
+    
+    // While an "Earlier History" page arrives, its lines go above what is already shown.
+    // Only touched by the reader thread.
+    private boolean prependingHistory = false;
+    private int prependPosition = 0;
+    
+    // Session resumption. The server numbers the messages in our log; lastSeq is the highest
+    // number up to which we have seen every message, so a reconnect asks for what came after
+    // it. Numbers seen past a gap wait in ahead. Guarded by this.
+    private String sessionToken;
+    private long lastSeq = -1;
+    private final TreeSet<Long> ahead = new TreeSet<>();
+    // The next number seen starts the count again: fresh history, or a cleared log.
+    private boolean rebaseline = true;
+    // Set for a new connection that should take over our session once it has its ID.
+    private boolean resuming = false;
+    
+    // AI reply being streamed: label and text so far (reader thread), and its row (EDT).
+    private String aiLabel = "AI";
+    private final StringBuilder aiText = new StringBuilder();
+    private ChatLine streamingLine;
+    
+    // View changes from other threads, applied on the EDT in batches so a burst of lines costs
+    // a few model events and repaints rather than one each. Guarded by itself.
+    private final List<Runnable> pendingUpdates = new ArrayList<>();
+    private boolean updatesScheduled = false;
+    // Set by updates in the batch being applied (EDT only).
+    private boolean appendedInBatch = false;
     
     // Colors to mimic WhatsApp style
     private final Color outgoingColor = new Color(220, 248, 198);
@@ -26,6 +70,7 @@ public class ChatClientGUI {
     
     // Our own user ID from the server
     private String clientUserId = "";
+    private int clientId = -1;
     
     public ChatClientGUI() {
         setupGUI();
@@ -38,13 +83,14 @@ public class ChatClientGUI {
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setLayout(new BorderLayout());
         
-        // Main chat panel
-        chatPanel = new JPanel();
-        chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
-        chatPanel.setBackground(new Color(240, 240, 240));
-        chatPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        // Main chat view: only rows in view are painted, all with the same renderer.
+        // Selected messages can be copied as plain text.
+        chatList = new JList<>(messages);
+        chatList.setCellRenderer(new BubbleRenderer());
+        chatList.setBackground(new Color(240, 240, 240));
+        chatList.setBorder(new EmptyBorder(10, 10, 10, 10));
         
-        chatScrollPane = new JScrollPane(chatPanel);
+        chatScrollPane = new JScrollPane(chatList);
         chatScrollPane.setBorder(BorderFactory.createEmptyBorder());
         chatScrollPane.getVerticalScrollBar().setUnitIncrement(16);
         
@@ -80,71 +126,267 @@ public class ChatClientGUI {
         sendButton.setFocusPainted(false);
         sendButton.addActionListener(e -> sendMessage());
         
+        // Asks the server for the page of history before the oldest one shown.
+        olderButton = new JButton("Load earlier messages");
+        olderButton.setFocusPainted(false);
+        olderButton.addActionListener(e -> send("\\more"));
+        
         JPanel inputPanel = new JPanel(new BorderLayout());
         inputPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
         inputPanel.add(inputScrollPane, BorderLayout.CENTER);
         inputPanel.add(sendButton, BorderLayout.EAST);
         
+        frame.add(olderButton, BorderLayout.NORTH);
         frame.add(chatScrollPane, BorderLayout.CENTER);
         frame.add(inputPanel, BorderLayout.SOUTH);
         frame.setVisible(true);
     }
     
     private void connectToServer() {
+        if (!connect()) {
+            JOptionPane.showMessageDialog(frame, "Failed to connect to server!", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    // Opens a connection and starts its reader thread; false if the server cannot be reached.
+    // When the connection drops, the reader keeps reconnecting until it succeeds.
+    private boolean connect() {
         try {
-            socket = new Socket(SERVER_ADDRESS, PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Socket newSocket = new Socket(SERVER_ADDRESS, PORT);
+            OutputStream newOut = new BufferedOutputStream(newSocket.getOutputStream());
+            synchronized (newOut) {
+                framesOut = false;
+                sentAnything = false;
+            }
+            synchronized (this) {
+                resuming = sessionToken != null;
+            }
+            socket = newSocket;
+            out = newOut;
+            in = new BinaryProtocol.Input(newSocket.getInputStream());
             
             addMessage("✅ Connected to chat server...", true, true);
             
             new Thread(() -> {
                 try {
+                    // Text lines until the server confirms binary frames, if it offers them.
                     String response;
-                    while ((response = in.readLine()) != null) {
-                        String trimmed = response.trim();
-                        System.out.println("DEBUG: Received -> \"" + trimmed + "\"");
-                        
-                        // If server indicates the chat history was cleared, update the UI.
-                        if (trimmed.equals("Chat history cleared.")) {
-                            SwingUtilities.invokeLater(() -> clearChatPanel());
-                            continue;
-                        }
-                        
-                        if (trimmed.startsWith("Your User ID: ")) {
-                            clientUserId = trimmed.substring("Your User ID: ".length()).trim();
-                            addMessage(trimmed, true, true);
-                            System.out.println("DEBUG: clientUserId = " + clientUserId);
+                    while ((response = in.readLine()) != null && !response.equals(BinaryProtocol.ACK)) {
+                        if (response.equals(BinaryProtocol.OFFER)) {
+                            acceptFrames();
                         } else {
-                            boolean isOutgoing = false;
-                            if (!clientUserId.isEmpty() && trimmed.contains("[User " + clientUserId + "]")) {
-                                isOutgoing = true;
-                            }
-                            if (trimmed.startsWith("You:")) {
-                                isOutgoing = true;
-                            }
-                            if (trimmed.startsWith("AI:")) {
-                                trimmed = formatAIMessage(trimmed);
-                            }
-                            addMessage(trimmed, isOutgoing, false);
+                            handleLine(response);
+                        }
+                    }
+                    if (response != null) {
+                        BinaryProtocol.Frame frame;
+                        while ((frame = in.readFrame()) != null) {
+                            handleFrame(frame);
                         }
                     }
                 } catch (IOException e) {
-                    addMessage("Disconnected from server.", false, true);
+                    // Reconnect below.
+                }
+                addMessage("Disconnected from server. Reconnecting...", false, true);
+                while (!connect()) {
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
                 }
             }).start();
+            return true;
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(frame, "Failed to connect to server!", "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+    }
+    
+    // Records a message's sequence number. False if it was seen before, e.g. both live and in
+    // the missed messages sent on resume.
+    private synchronized boolean noteSeq(long seq) {
+        if (rebaseline) {
+            rebaseline = false;
+            lastSeq = seq - 1;
+            ahead.clear();
+        }
+        if (seq <= lastSeq || !ahead.add(seq)) {
+            return false;
+        }
+        while (!ahead.isEmpty() && ahead.first() == lastSeq + 1) {
+            lastSeq = ahead.pollFirst();
+        }
+        if (ahead.size() > MAX_AHEAD) {
+            lastSeq = ahead.last();
+            ahead.clear();
+        }
+        return true;
+    }
+    
+    private synchronized void resetSeqs() {
+        lastSeq = -1;
+        ahead.clear();
+        rebaseline = true;
+    }
+    
+    // Called with our ID on every connection. A reconnect then asks to resume the session; the
+    // server answers with our old ID and the messages we missed.
+    private boolean resumeSession() {
+        String request;
+        synchronized (this) {
+            if (!resuming) {
+                return false;
+            }
+            resuming = false;
+            request = "\\resume " + sessionToken + " " + lastSeq;
+        }
+        send(request);
+        return true;
+    }
+    
+    // Handles one line in the text protocol's form. Whether it is our own message has to be
+    // guessed from its prefix.
+    private void handleLine(String response) {
+        String trimmed = response.trim();
+        System.out.println("DEBUG: Received -> \"" + trimmed + "\"");
+        
+        // If server indicates the chat history was cleared, update the UI.
+        if (trimmed.equals("Chat history cleared.")) {
+            resetSeqs();
+            clearChatPanel();
+            return;
+        }
+        if (trimmed.startsWith("Your Session: ")) {
+            synchronized (this) {
+                sessionToken = trimmed.substring("Your Session: ".length()).trim();
+            }
+            return;
+        }
+        if (trimmed.equals("--- Chat History ---") || trimmed.startsWith("Session expired")) {
+            resetSeqs();
+        }
+        
+        if (trimmed.startsWith("--- Earlier History")) {
+            prependingHistory = true;
+            prependPosition = 0;
+        }
+        if (prependingHistory) {
+            boolean isOutgoing = trimmed.startsWith("You:")
+                    || (!clientUserId.isEmpty() && trimmed.startsWith("[" + clientUserId + "]"));
+            addMessage(trimmed, isOutgoing, trimmed.startsWith("---"), prependPosition);
+            prependPosition++;
+            if (trimmed.equals("--------------------")) {
+                prependingHistory = false;
+            }
+            return;
+        }
+        
+        // Further lines of the AI reply being streamed go into the same bubble.
+        if (trimmed.startsWith("AI+ ")) {
+            aiText.append('\n').append(trimmed.substring(4));
+            updateStreamingMessage(renderAIMessage());
+            return;
+        }
+        if (trimmed.startsWith("AI:") || trimmed.startsWith("AI-Math:")) {
+            aiLabel = trimmed.substring(0, trimmed.indexOf(':'));
+            aiText.setLength(0);
+            aiText.append(trimmed.substring(aiLabel.length() + 1).trim());
+        }
+        
+        if (trimmed.startsWith("Your User ID: ")) {
+            if (resumeSession()) {
+                return; // A temporary ID; the old one follows.
+            }
+            clientUserId = trimmed.substring("Your User ID: ".length()).trim();
+            try {
+                clientId = Integer.parseInt(clientUserId);
+            } catch (NumberFormatException e) {
+                clientId = -1;
+            }
+            addMessage(trimmed, true, true);
+            System.out.println("DEBUG: clientUserId = " + clientUserId);
+        } else {
+            boolean isOutgoing = false;
+            if (!clientUserId.isEmpty() && trimmed.contains("[User " + clientUserId + "]")) {
+                isOutgoing = true;
+            }
+            if (trimmed.startsWith("You:")) {
+                isOutgoing = true;
+            }
+            if (trimmed.startsWith("AI:")) {
+                trimmed = formatAIMessage(trimmed);
+            }
+            addMessage(trimmed, isOutgoing, false);
+        }
+    }
+    
+    // Handles one binary frame. Typed frames carry the sender's ID, so nothing is guessed;
+    // TEXT frames hold notices and history lines in text form.
+    private void handleFrame(BinaryProtocol.Frame frame) {
+        if (frame.seq >= 0 && !prependingHistory && !noteSeq(frame.seq)) {
+            return;
+        }
+        switch (frame.type) {
+            case BinaryProtocol.SEQ:
+                break;
+            case BinaryProtocol.GROUP:
+                boolean own = frame.senderId == clientId;
+                addMessage((own ? "You: " : "[User " + frame.senderId + "]: ") + frame.text, own, false);
+                break;
+            case BinaryProtocol.PRIVATE:
+                addMessage("[User " + frame.senderId + "] " + frame.text, false, false);
+                break;
+            case BinaryProtocol.AI:
+            case BinaryProtocol.MATH:
+                aiLabel = frame.type == BinaryProtocol.MATH ? "AI-Math" : "AI";
+                aiText.setLength(0);
+                aiText.append(frame.text.trim());
+                addMessage(renderAIMessage(), false, false);
+                break;
+            case BinaryProtocol.AI_MORE:
+                aiText.append('\n').append(frame.text.trim());
+                updateStreamingMessage(renderAIMessage());
+                break;
+            default:
+                handleLine(frame.text);
         }
     }
     
     private void clearChatPanel() {
-        chatPanel.removeAll();
-        chatPanel.revalidate();
-        chatPanel.repaint();
+        enqueueUpdate(() -> {
+            messages.clear();
+            streamingLine = null;
+        });
         addMessage("Chat history cleared.", true, true);
     }
     
+    private String renderAIMessage() {
+        if (aiLabel.equals("AI")) {
+            return formatAIMessage("AI: " + aiText);
+        }
+        return aiLabel + ":<br>" + aiText.toString().replace("\n", "<br>");
+    }
+    
+    // Replaces the text of the AI bubble that is currently streaming.
+    private void updateStreamingMessage(final String message) {
+        enqueueUpdate(() -> {
+            if (streamingLine == null) {
+                return;
+            }
+            ChatLine updated = new ChatLine(message, streamingLine.outgoing, streamingLine.system);
+            if (messages.replace(streamingLine, updated)) {
+                streamingLine = updated;
+                appendedInBatch = true; // Keep the growing reply in view.
+            } else {
+                streamingLine = null; // Dropped from the view meanwhile.
+            }
+        });
+    }
+    
+    private static String toHtml(String message) {
+        return "<html><div style='width:300px; word-wrap: break-word;'>" + message + "</div></html>";
+    }
+    
     private String formatAIMessage(String message) {
         String content = message.substring(3).trim();
         content = content.replaceAll("\r\n?", "\n");
@@ -163,58 +405,106 @@ public class ChatClientGUI {
     }
     
     private void addMessage(final String message, final boolean isOutgoing, final boolean isSystem) {
-        SwingUtilities.invokeLater(() -> {
-            JPanel bubble = new JPanel();
-            bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
-            bubble.setBorder(new EmptyBorder(2, 2, 2, 2));
-            
-            String htmlMessage = "<html><div style='width:300px; word-wrap: break-word;'>" + message + "</div></html>";
-            
-            JTextPane msgPane = new JTextPane();
-            msgPane.setContentType("text/html");
-            msgPane.setText(htmlMessage);
-            msgPane.setEditable(false);
-            msgPane.setOpaque(false);
-            msgPane.setBackground(isOutgoing ? outgoingColor : incomingColor);
-            msgPane.setFont(new Font("SansSerif", Font.PLAIN, 16));
-            
-            InputMap im = msgPane.getInputMap();
-            im.put(KeyStroke.getKeyStroke("meta C"), DefaultEditorKit.copyAction);
-            im.put(KeyStroke.getKeyStroke("meta V"), DefaultEditorKit.pasteAction);
-            im.put(KeyStroke.getKeyStroke("meta X"), DefaultEditorKit.cutAction);
-            im.put(KeyStroke.getKeyStroke("meta A"), DefaultEditorKit.selectAllAction);
-            
-            if (message.startsWith("✅") || message.startsWith("⚠️") || isSystem) {
-                msgPane.setFont(new Font("SansSerif", Font.ITALIC, 16));
+        addMessage(message, isOutgoing, isSystem, -1);
+    }
+    
+    // Adds a message at the given row, or at the end when position is -1. Safe from any thread.
+    private void addMessage(final String message, final boolean isOutgoing, final boolean isSystem, final int position) {
+        boolean system = isSystem || message.startsWith("✅") || message.startsWith("⚠️");
+        ChatLine line = new ChatLine(message, isOutgoing, system);
+        enqueueUpdate(() -> {
+            if (position >= 0) {
+                messages.insert(position, line);
+                return;
+            }
+            messages.append(line);
+            appendedInBatch = true;
+            if (message.startsWith("AI:") || message.startsWith("AI-Math:")) {
+                streamingLine = line;
             }
-            
-            bubble.add(msgPane);
-            
-            Dimension preferred = bubble.getPreferredSize();
-            bubble.setMaximumSize(new Dimension(350, preferred.height));
-            
-            JPanel container = new JPanel(new FlowLayout(isOutgoing ? FlowLayout.RIGHT : FlowLayout.LEFT));
-            container.setOpaque(false);
-            container.add(bubble);
-            
-            chatPanel.add(container);
-            chatPanel.add(Box.createVerticalStrut(10));
-            chatPanel.revalidate();
-            
-            JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
         });
     }
     
+    private void enqueueUpdate(Runnable update) {
+        synchronized (pendingUpdates) {
+            pendingUpdates.add(update);
+            if (updatesScheduled) {
+                return;
+            }
+            updatesScheduled = true;
+        }
+        SwingUtilities.invokeLater(this::applyUpdates);
+    }
+    
+    // Applies every queued update, then trims the oldest rows and scrolls to the end once.
+    private void applyUpdates() {
+        List<Runnable> batch;
+        synchronized (pendingUpdates) {
+            batch = new ArrayList<>(pendingUpdates);
+            pendingUpdates.clear();
+            updatesScheduled = false;
+        }
+        appendedInBatch = false;
+        for (Runnable update : batch) {
+            update.run();
+        }
+        messages.flush();
+        if (appendedInBatch) {
+            if (messages.getSize() > MAX_MESSAGES) {
+                messages.removeOldest(messages.getSize() - MAX_MESSAGES);
+            }
+            chatList.ensureIndexIsVisible(messages.getSize() - 1);
+        }
+    }
+    
     private void sendMessage() {
         String message = inputArea.getText().trim();
         if (!message.isEmpty()) {
-            out.println(message);
+            send(message);
             addMessage("You: " + message, true, false);
             inputArea.setText("");
         }
     }
     
+    // Sends what the user typed: as a text line, or as a typed frame once frames are agreed.
+    private void send(String message) {
+        OutputStream out = this.out;
+        if (out == null) {
+            return;
+        }
+        if (message.equals("\\clear")) {
+            resetSeqs();
+        }
+        synchronized (out) {
+            sentAnything = true;
+            try {
+                out.write(framesOut ? BinaryProtocol.encodeInput(message)
+                        : (message + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // The reader thread reports the disconnect.
+            }
+        }
+    }
+    
+    // Answers the server's framing offer. Only possible while we have sent nothing, since the
+    // server only accepts the hello as the first line.
+    private void acceptFrames() {
+        OutputStream out = this.out;
+        synchronized (out) {
+            if (sentAnything) {
+                return;
+            }
+            try {
+                out.write((BinaryProtocol.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                framesOut = true;
+            } catch (IOException e) {
+                // The reader thread reports the disconnect.
+            }
+        }
+    }
+    
     public static void setMacShortcuts() {
         InputMap textFieldMap = (InputMap) UIManager.get("TextField.focusInputMap");
         textFieldMap.put(KeyStroke.getKeyStroke("meta C"), DefaultEditorKit.copyAction);
@@ -229,6 +519,146 @@ public class ChatClientGUI {
         textPaneMap.put(KeyStroke.getKeyStroke("meta A"), DefaultEditorKit.selectAllAction);
     }
     
+    // One row of the chat view. Immutable apart from its measured size, which is cached since
+    // bubbles have a fixed width; a streamed AI reply is replaced by a new ChatLine per update.
+    private static final class ChatLine {
+        final String message;
+        final String html;
+        final boolean outgoing;
+        final boolean system;
+        Dimension size;
+        
+        ChatLine(String message, boolean outgoing, boolean system) {
+            this.message = message;
+            this.html = toHtml(message);
+            this.outgoing = outgoing;
+            this.system = system;
+        }
+        
+        // Plain text, used when selected rows are copied.
+        public String toString() {
+            return message.replace("<br>", "\n").replaceAll("<[^>]*>", "");
+        }
+    }
+    
+    // List model that announces consecutive appends as one event.
+    private static final class MessageListModel extends AbstractListModel<ChatLine> {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<ChatLine> lines = new ArrayList<>();
+        // Appended rows not yet announced to the list.
+        private int unannounced;
+        
+        public int getSize() {
+            return lines.size() - unannounced;
+        }
+        
+        public ChatLine getElementAt(int index) {
+            return lines.get(index);
+        }
+        
+        void append(ChatLine line) {
+            lines.add(line);
+            unannounced++;
+        }
+        
+        void flush() {
+            if (unannounced > 0) {
+                int first = lines.size() - unannounced;
+                unannounced = 0;
+                fireIntervalAdded(this, first, lines.size() - 1);
+            }
+        }
+        
+        void insert(int index, ChatLine line) {
+            flush();
+            index = Math.min(index, lines.size());
+            lines.add(index, line);
+            fireIntervalAdded(this, index, index);
+        }
+        
+        // Returns false if the old row is no longer in the view.
+        boolean replace(ChatLine old, ChatLine line) {
+            flush();
+            int index = lines.lastIndexOf(old);
+            if (index < 0) {
+                return false;
+            }
+            lines.set(index, line);
+            fireContentsChanged(this, index, index);
+            return true;
+        }
+        
+        void removeOldest(int count) {
+            flush();
+            lines.subList(0, count).clear();
+            fireIntervalRemoved(this, 0, count - 1);
+        }
+        
+        void clear() {
+            flush();
+            int size = lines.size();
+            if (size > 0) {
+                lines.clear();
+                fireIntervalRemoved(this, 0, size - 1);
+            }
+        }
+    }
+    
+    // Paints every row with the same components. Row heights are measured once per ChatLine,
+    // and the HTML is only parsed when a row is measured for the first time or painted.
+    private final class BubbleRenderer extends JPanel implements ListCellRenderer<ChatLine> {
+        private static final long serialVersionUID = 1L;
+        private final FlowLayout layout = new FlowLayout(FlowLayout.LEFT, 0, 0);
+        private final JLabel bubble = new JLabel();
+        private final Font plainFont = new Font("SansSerif", Font.PLAIN, 16);
+        private final Font italicFont = new Font("SansSerif", Font.ITALIC, 16);
+        private ChatLine current;
+        private ChatLine shown;
+        
+        BubbleRenderer() {
+            setLayout(layout);
+            setOpaque(false);
+            setBorder(new EmptyBorder(5, 0, 5, 0));
+            bubble.setOpaque(true);
+            bubble.setBorder(new EmptyBorder(4, 6, 4, 6));
+            add(bubble);
+        }
+        
+        public Component getListCellRendererComponent(JList<? extends ChatLine> list, ChatLine line,
+                int index, boolean isSelected, boolean cellHasFocus) {
+            current = line;
+            layout.setAlignment(line.outgoing ? FlowLayout.RIGHT : FlowLayout.LEFT);
+            bubble.setBackground(isSelected ? list.getSelectionBackground()
+                    : line.outgoing ? outgoingColor : incomingColor);
+            return this;
+        }
+        
+        public Dimension getPreferredSize() {
+            if (current == null) {
+                return super.getPreferredSize();
+            }
+            if (current.size == null) {
+                showCurrent();
+                current.size = super.getPreferredSize();
+            }
+            return current.size;
+        }
+        
+        // The list validates the renderer right before painting it.
+        public void validate() {
+            showCurrent();
+            super.validate();
+        }
+        
+        private void showCurrent() {
+            if (current != null && shown != current) {
+                bubble.setFont(current.system ? italicFont : plainFont); // Re-parses HTML, so only here.
+                bubble.setText(current.html);
+                shown = current;
+            }
+        }
+    }
+    
     public static void main(String[] args) {
         setMacShortcuts();
         
@@ -0,0 +1,168 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cluster mode: several ChatServer nodes share one user space. Every node allocates user IDs
+// from its own range, so the node that owns a user follows from the ID alone. Nodes announce
+// their users coming and going over the MessageBus and each keeps the set of users online
+// elsewhere (the presence directory); a node that drops takes its users with it. Private
+// messages to a remote user go to that user's node only, which also keeps the mailbox of a
+// user who is offline; a group message goes once to every node, which fans it out to its own
+// users.
+public class ChatCluster implements MessageBus.Handler {
+    // User IDs per node: node n allocates from n * ID_SPAN + 1000, so node 0 keeps the IDs
+    // a single server has always used.
+    static final int ID_SPAN = 10_000_000;
+    static final int MAX_NODES = Integer.MAX_VALUE / ID_SPAN;
+
+    // Bus frame types besides GROUP and PRIVATE; the sender field carries the user ID.
+    static final byte ONLINE = 64;
+    static final byte OFFLINE = 65;
+    // A room message; the text is "<room> <message>".
+    static final byte ROOM = 66;
+    // A server notice for the target user, such as a mailbox delivery acknowledgement.
+    static final byte NOTICE = 67;
+
+    private final int nodeId;
+    private final MessageBus bus;
+    private final Set<Integer> remoteUsers = ConcurrentHashMap.newKeySet();
+    // Nodes this one has a link to.
+    private final Set<Integer> linkedNodes = ConcurrentHashMap.newKeySet();
+
+    ChatCluster(int nodeId, MessageBus bus) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+    }
+
+    // Parses "--cluster" node lists of the form 0=host:port,1=host:port,...
+    static Map<Integer, InetSocketAddress> parseNodes(String list) {
+        Map<Integer, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String entry : list.split(",")) {
+            String[] parts = entry.trim().split("=", 2);
+            int colon = parts.length == 2 ? parts[1].lastIndexOf(':') : -1;
+            if (colon < 0) {
+                throw new IllegalArgumentException("Bad cluster node " + entry + " (expected id=host:port)");
+            }
+            int id = Integer.parseInt(parts[0].trim());
+            if (id < 0 || id >= MAX_NODES) {
+                throw new IllegalArgumentException("Node IDs must be between 0 and " + (MAX_NODES - 1));
+            }
+            nodes.put(id, new InetSocketAddress(parts[1].substring(0, colon),
+                    Integer.parseInt(parts[1].substring(colon + 1))));
+        }
+        return nodes;
+    }
+
+    static int firstUserId(int nodeId) {
+        return nodeId * ID_SPAN + 1000;
+    }
+
+    static int ownerOf(int userId) {
+        return userId / ID_SPAN;
+    }
+
+    void start() throws java.io.IOException {
+        bus.start(this);
+        System.out.println("Cluster node " + nodeId + " (" + bus.name() + " bus)");
+    }
+
+    String busName() {
+        return bus.name();
+    }
+
+    int remoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    long droppedMessages() {
+        return bus.dropped();
+    }
+
+    boolean isOnline(int userId) {
+        return remoteUsers.contains(userId);
+    }
+
+    // True if the user's ID was allocated by this node, which then keeps the user's mailbox.
+    boolean owns(int userId) {
+        return ownerOf(userId) == nodeId;
+    }
+
+    // True if the node that owns the user can be reached, so it can take a message for them.
+    boolean isReachable(int userId) {
+        return linkedNodes.contains(ownerOf(userId));
+    }
+
+    void userJoined(int userId) {
+        bus.broadcast(BinaryProtocol.encode(ONLINE, userId, 0, ""));
+    }
+
+    void userLeft(int userId) {
+        bus.broadcast(BinaryProtocol.encode(OFFLINE, userId, 0, ""));
+    }
+
+    void sendPrivate(int senderId, int targetUserId, String message) {
+        bus.send(ownerOf(targetUserId), BinaryProtocol.encode(BinaryProtocol.PRIVATE, senderId, targetUserId, message));
+    }
+
+    void broadcast(int senderId, String message) {
+        bus.broadcast(BinaryProtocol.encode(BinaryProtocol.GROUP, senderId, 0, message));
+    }
+
+    void notice(int userId, String text) {
+        bus.send(ownerOf(userId), BinaryProtocol.encode(NOTICE, 0, userId, text));
+    }
+
+    // Rooms are kept per node, so a room message goes once to every node like a group message.
+    void roomMessage(int senderId, String room, String message) {
+        bus.broadcast(BinaryProtocol.encode(ROOM, senderId, 0, room + " " + message));
+    }
+
+    // Tells a newly linked node which users are online here.
+    public List<byte[]> onConnected(int node) {
+        linkedNodes.add(node);
+        List<byte[]> frames = new ArrayList<>();
+        for (int userId : ChatServer.localUserIds()) {
+            frames.add(BinaryProtocol.encode(ONLINE, userId, 0, ""));
+        }
+        return frames;
+    }
+
+    public void onMessage(int node, BinaryProtocol.Frame frame) {
+        switch (frame.type) {
+            case ONLINE:
+                if (ownerOf(frame.senderId) == node) {
+                    remoteUsers.add(frame.senderId);
+                }
+                break;
+            case OFFLINE:
+                remoteUsers.remove(frame.senderId);
+                break;
+            case BinaryProtocol.PRIVATE:
+                ChatServer.receivePrivate(frame.targetId, frame.text, frame.senderId);
+                break;
+            case NOTICE:
+                ChatServer.notifyUser(frame.targetId, frame.text);
+                break;
+            case BinaryProtocol.GROUP:
+                ChatServer.deliverGroup(frame.text, frame.senderId);
+                break;
+            case ROOM:
+                int space = frame.text.indexOf(' ');
+                if (space > 0) {
+                    ChatServer.deliverRoom(frame.text.substring(0, space), frame.text.substring(space + 1), frame.senderId);
+                }
+                break;
+            default:
+                System.out.println("Bus: ignoring message type " + frame.type + " from node " + node + ".");
+        }
+    }
+
+    public void onNodeDown(int node) {
+        linkedNodes.remove(node);
+        remoteUsers.removeIf(userId -> ownerOf(userId) == node);
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Writes chat log records on a dedicated thread. Producers only enqueue; the writer drains
+// whatever has accumulated, appends it to the SegmentedLog with one write and then syncs the
+// whole batch at once (group commit). Group messages are stored once for all recipients.
+// Sequence numbers are handed out as records are queued, so callers know them before the write
+// happens; they keep counting up across a clear. Senders wait for queue space and read a user's
+// first number from the log outside the numbering lock, so a slow disk never holds it.
+public class ChatLogWriter {
+    public enum Durability {
+        BATCH,     // fsync every batch before the next one is taken.
+        PERIODIC;  // fsync at most once per interval; a crash may lose the last interval.
+
+        public static Durability parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 4096;
+
+    private final SegmentedLog log;
+    private final Durability durability;
+    private final long fsyncIntervalNanos;
+
+    // Unbounded itself; a record is only offered once it holds one of the space permits, which
+    // the writer hands back as it takes records.
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Semaphore space = new Semaphore(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    // Users with records on the way. Numbers are given and records offered while holding this
+    // lock, so the queue, and hence the log, has them in numbering order. The writer drops a
+    // user once none of their records is queued; the log has the number from then on.
+    private final Map<Integer, Sequence> nextSeq = new HashMap<>();
+
+    // Writer thread only. The first failed write or sync; lines may be missing from then on, so
+    // every later awaitSynced fails too.
+    private IOException failure;
+    private boolean unsynced;
+    private long lastSync = System.nanoTime();
+
+    public ChatLogWriter(SegmentedLog log, Durability durability, long fsyncIntervalMillis) {
+        this.log = log;
+        this.durability = durability;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.writerThread = new Thread(this::writeLoop, "chat-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Queues one line for the user's log and returns its sequence number. Waits only if the
+    // writer has fallen far behind.
+    public long append(int userId, String line) {
+        int[] userIds = {userId};
+        long[] seqs = new long[1];
+        enqueue(Record.APPEND, userIds, seqs, line, 1);
+        return seqs[0];
+    }
+
+    // Queues a group message, stored once for all recipients. Returns the sequence number it
+    // gets in each recipient's log, in the order of recipients.
+    public long[] appendGroup(int[] recipients, String line) {
+        long[] seqs = new long[recipients.length];
+        enqueue(Record.GROUP, recipients, seqs, line, 1);
+        return seqs;
+    }
+
+    // Queues a clear of the user's log, ordered after everything appended before it. Lines
+    // numbered below the current next number are hidden at once and dropped by compaction.
+    public void clear(int userId) {
+        enqueue(Record.CLEAR, new int[] {userId}, new long[1], null, 0);
+    }
+
+    // Waits until everything queued so far has been written, e.g. before replaying history.
+    // Failures are not reported; the reader just sees what made it to the log.
+    public void awaitWritten() {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        enqueue(new Record(Record.BARRIER, null, null, null, written));
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already reported by the writer.
+        }
+    }
+
+    // Waits until everything queued so far has been written and synced, whatever the durability.
+    // Throws if that cannot be promised because a write or sync has failed.
+    public void awaitSynced() throws IOException {
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        enqueue(new Record(Record.SYNC_BARRIER, null, null, null, synced));
+        try {
+            synced.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the chat log to sync");
+        } catch (ExecutionException e) {
+            throw new IOException("Chat log not synced", e.getCause());
+        }
+    }
+
+    // Number of records waiting for the writer thread.
+    public int pending() {
+        return queue.size();
+    }
+
+    // Writes and syncs everything still queued, then closes the log.
+    public void close() {
+        enqueue(new Record(Record.STOP, null, null, null, null));
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Numbers a user record, filling seqs and advancing each user's next number by step, and
+    // queues it. The users are claimed first so the writer cannot drop them meanwhile.
+    private void enqueue(int kind, int[] userIds, long[] seqs, String line, int step) {
+        Sequence[] sequences = new Sequence[userIds.length];
+        synchronized (nextSeq) {
+            for (int i = 0; i < userIds.length; i++) {
+                sequences[i] = nextSeq.computeIfAbsent(userIds[i], id -> new Sequence());
+                sequences[i].queued++;
+            }
+        }
+        // Nothing of a newly claimed user is queued, so the log has their next number.
+        for (int i = 0; i < userIds.length; i++) {
+            sequences[i].load(log, userIds[i]);
+        }
+        boolean queued = false;
+        try {
+            space.acquire();
+            synchronized (nextSeq) {
+                for (int i = 0; i < userIds.length; i++) {
+                    seqs[i] = sequences[i].next;
+                    sequences[i].next += step;
+                }
+                queued = queue.offer(new Record(kind, userIds, seqs, line, null));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!queued) {
+                synchronized (nextSeq) {
+                    release(userIds);
+                }
+            }
+        }
+    }
+
+    private void enqueue(Record record) {
+        try {
+            space.acquire();
+            queue.offer(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Caller holds nextSeq. One record of each user is gone from the queue; users with nothing
+    // queued any more are dropped.
+    private void release(int[] userIds) {
+        for (int userId : userIds) {
+            Sequence sequence = nextSeq.get(userId);
+            if (--sequence.queued == 0) {
+                nextSeq.remove(userId);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        boolean running = true;
+        while (running) {
+            Record first;
+            try {
+                first = !unsynced
+                        ? queue.take()
+                        : queue.poll(fsyncIntervalNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                space.release(batch.size());
+                long start = System.nanoTime();
+                running = writeBatch(batch);
+                Metrics.LOG_BATCH.recordSince(start);
+                Metrics.LOG_RECORDS.add(batch.size());
+                batch.clear();
+            }
+            if (System.nanoTime() - lastSync >= fsyncIntervalNanos) {
+                syncAll();
+            }
+        }
+        syncAll();
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns false once a stop record has been seen.
+    private boolean writeBatch(List<Record> batch) {
+        SegmentedLog.Batch records = new SegmentedLog.Batch();
+        List<CompletableFuture<Void>> barriers = new ArrayList<>();
+        boolean syncNow = durability == Durability.BATCH;
+        boolean running = true;
+        for (Record record : batch) {
+            if (record.kind == Record.STOP) {
+                running = false;
+            } else if (record.kind == Record.BARRIER) {
+                barriers.add(record.written);
+            } else if (record.kind == Record.SYNC_BARRIER) {
+                barriers.add(record.written);
+                syncNow = true;
+            } else if (record.kind == Record.CLEAR) {
+                records.clear(record.userIds[0], record.seqs[0]);
+            } else if (record.kind == Record.GROUP) {
+                records.group(record.userIds, record.seqs, record.line);
+            } else {
+                records.line(record.userIds[0], record.seqs[0], record.line);
+            }
+        }
+        if (!records.isEmpty()) {
+            try {
+                log.write(records);
+                unsynced = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed(e);
+            }
+        }
+        if (syncNow) {
+            syncAll();
+        }
+        // After a failed write the log's numbers may lag, so keep counting here.
+        if (failure == null) {
+            synchronized (nextSeq) {
+                for (Record record : batch) {
+                    if (record.userIds != null) {
+                        release(record.userIds);
+                    }
+                }
+            }
+        }
+        for (CompletableFuture<Void> barrier : barriers) {
+            if (failure != null) {
+                barrier.completeExceptionally(failure);
+            } else {
+                barrier.complete(null);
+            }
+        }
+        return running;
+    }
+
+    private void syncAll() {
+        long start = System.nanoTime();
+        boolean synced = false;
+        try {
+            synced = log.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed(e);
+        }
+        unsynced = false;
+        lastSync = System.nanoTime();
+        if (synced) {
+            Metrics.LOG_FSYNC.record(lastSync - start);
+        }
+    }
+
+    private void failed(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    // One user's next sequence number, and how many of their records are queued or about to be.
+    private static class Sequence {
+        // Both guarded by the nextSeq map once loaded.
+        long next;
+        int queued;
+        private boolean loaded;
+
+        // The user's first record since they were last dropped reads the number from the log.
+        // Later records of the same user wait here; nobody else does.
+        synchronized void load(SegmentedLog log, int userId) {
+            if (!loaded) {
+                next = log.nextSeq(userId);
+                loaded = true;
+            }
+        }
+    }
+
+    private static class Record {
+        static final int APPEND = 0;
+        static final int CLEAR = 1;
+        static final int BARRIER = 2;
+        static final int STOP = 3;
+        static final int GROUP = 4;
+        static final int SYNC_BARRIER = 5;
+
+        final int kind;
+        final int[] userIds;
+        final long[] seqs;
+        final String line;
+        final CompletableFuture<Void> written;
+
+        Record(int kind, int[] userIds, long[] seqs, String line, CompletableFuture<Void> written) {
+            this.kind = kind;
+            this.userIds = userIds;
+            this.seqs = seqs;
+            this.line = line;
+            this.written = written;
+        }
+    }
+}
@@ -1,249 +1,1147 @@
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
     private static final int PORT = 12345;
+    static final int ACCEPT_BACKLOG = 1024;
     // Clients keyed by userId; this map is used for both private and group messaging.
-    private static final Map<Integer, ClientHandler> clients = new HashMap<>();
-    private static int userIdCounter = 1000;
+    private static final Map<Integer, ClientHandler> clients = new ConcurrentHashMap<>();
+    private static final AtomicInteger userIdCounter = new AtomicInteger(1000);
+    // Rooms with at least one member here, keyed by lower-case name. Joins and leaves go through
+    // compute() so a room is never dropped while someone is joining it.
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    static final int MAX_ROOMS_PER_USER = 32;
     private static final String SECRET_KEY = "MySecretKey12345"; // Must be 16 characters for AES
+    private static final CryptoEngine crypto = new CryptoEngine(SECRET_KEY.getBytes());
 
-    public static void main(String[] args) {
-        System.out.println("Chat server started on port " + PORT);
-        new File("ChatLogs").mkdir(); // Create directory for chat logs
+    // Per-client outbound queue settings; see OutboundQueue.
+    private static int outboundQueueCapacity = 1024;
+    private static OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DROP_OLDEST;
+    // Whether new connections are offered the binary framing protocol (see BinaryProtocol).
+    private static boolean offerFrames = true;
+
+    // Log appends happen on this writer's thread; history is read from chatStore. See openChatLog.
+    private static SegmentedLog chatStore;
+    private static ChatLogWriter chatLog;
+    // Log segments are closed at this size or age (0 = no age limit). Closed segments are kept
+    // until older than the retention time or beyond the retention size (0 = keep).
+    private static long logSegmentBytes = 64L << 20;
+    private static long logSegmentAgeMillis = 0;
+    private static long logRetentionMillis = 0;
+    private static long logRetentionBytes = 0;
+    // Messages per history page, both on connect and for \more.
+    private static int historyPageSize = 50;
+    private static AiScheduler aiScheduler;
+    // Answers repeated prompts without running the model again.
+    private static AiResponseCache aiCache;
+    // Links to the other nodes in cluster mode; null for a single server.
+    private static ChatCluster cluster;
+    // Lets a reconnecting client take its user ID back; null with --session-ttl-s=0.
+    private static SessionRegistry sessions;
+    // Word index over every user's log for \search; null with --search=off.
+    private static SearchIndex searchIndex;
+    static final int SEARCH_PAGE_SIZE = 10;
+    // Private messages for offline users, delivered when they connect; null with --mailbox-size=0.
+    private static Mailbox mailbox;
+    // Hands mail over when a deposit finds its recipient connected after all, so the sender's
+    // thread does not wait on disk for someone else's batch.
+    private static final ExecutorService mailDelivery = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mailbox-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // A resume that missed more lines than this gets the latest history page instead.
+    static final int MAX_MISSED_LINES = 10_000;
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket socket = serverSocket.accept();
-                int userId = userIdCounter++;
-                ClientHandler clientHandler = new ClientHandler(socket, userId);
-                synchronized(clients) {
-                    clients.put(userId, clientHandler);
+    // Usage: java ChatServer [--port=12345] [--engine=threads|virtual|nio|nio-virtual] [--nio-workers=N]
+    //                        [--protocol=auto|text]
+    //                        [--queue-capacity=1024] [--slow-consumer=drop-oldest|disconnect|coalesce]
+    //                        [--log-dir=ChatLogs] [--log-durability=batch|periodic] [--log-fsync-ms=1000]
+    //                        [--log-segment-mb=64] [--log-segment-age-s=0] [--log-retention-days=0]
+    //                        [--log-retention-mb=0] [--history-page=50]
+    //                        [--ai-command=ollama] [--ai-queue=64] [--ai-concurrency=2]
+    //                        [--ai-cache-size=1000] [--ai-cache-ttl-s=3600] [--metrics-port=0]
+    //                        [--session-ttl-s=86400] [--mailbox-size=100] [--mailbox-sender-quota=20]
+    //                        [--mailbox-total-mb=64] [--search=on|off]
+    //                        [--node-id=0 --cluster=0=host:port,1=host:port,... [--bus=batched|direct]]
+    public static void main(String[] args) {
+        int port = PORT;
+        String engineName = "threads";
+        // Handlers block on disk and on slow clients, so the nio pool is several threads per core.
+        int nioWorkers = Math.max(16, 8 * Runtime.getRuntime().availableProcessors());
+        ChatLogWriter.Durability logDurability = ChatLogWriter.Durability.PERIODIC;
+        long logFsyncMillis = 1000;
+        File logDir = new File("ChatLogs");
+        String aiCommand = "ollama";
+        int aiQueue = 64;
+        int aiConcurrency = 2;
+        int aiCacheSize = 1000;
+        long aiCacheTtlSeconds = 3600;
+        int metricsPort = 0;
+        long sessionTtlSeconds = 86400;
+        int mailboxSize = 100;
+        int mailboxSenderQuota = 20;
+        long mailboxTotalBytes = 64L << 20;
+        boolean search = true;
+        int nodeId = 0;
+        String clusterNodes = null;
+        String busName = "batched";
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                engineName = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--nio-workers=")) {
+                nioWorkers = Integer.parseInt(arg.substring("--nio-workers=".length()));
+            } else if (arg.startsWith("--protocol=")) {
+                String protocol = arg.substring("--protocol=".length());
+                if (!protocol.equals("auto") && !protocol.equals("text")) {
+                    System.out.println("Unknown protocol: " + protocol + " (expected auto or text)");
+                    return;
+                }
+                offerFrames = protocol.equals("auto");
+            } else if (arg.startsWith("--queue-capacity=")) {
+                outboundQueueCapacity = Integer.parseInt(arg.substring("--queue-capacity=".length()));
+            } else if (arg.startsWith("--slow-consumer=")) {
+                slowConsumerPolicy = OutboundQueue.Policy.parse(arg.substring("--slow-consumer=".length()));
+            } else if (arg.startsWith("--log-dir=")) {
+                logDir = new File(arg.substring("--log-dir=".length()));
+            } else if (arg.startsWith("--log-durability=")) {
+                logDurability = ChatLogWriter.Durability.parse(arg.substring("--log-durability=".length()));
+            } else if (arg.startsWith("--log-fsync-ms=")) {
+                logFsyncMillis = Long.parseLong(arg.substring("--log-fsync-ms=".length()));
+            } else if (arg.startsWith("--log-segment-mb=")) {
+                // Offsets within a segment are ints.
+                long mb = Math.min(1024, Long.parseLong(arg.substring("--log-segment-mb=".length())));
+                logSegmentBytes = Math.max(1, mb) << 20;
+            } else if (arg.startsWith("--log-segment-age-s=")) {
+                logSegmentAgeMillis = 1000 * Long.parseLong(arg.substring("--log-segment-age-s=".length()));
+            } else if (arg.startsWith("--log-retention-days=")) {
+                logRetentionMillis = TimeUnit.DAYS.toMillis(Long.parseLong(arg.substring("--log-retention-days=".length())));
+            } else if (arg.startsWith("--log-retention-mb=")) {
+                logRetentionBytes = Long.parseLong(arg.substring("--log-retention-mb=".length())) << 20;
+            } else if (arg.startsWith("--history-page=")) {
+                historyPageSize = Integer.parseInt(arg.substring("--history-page=".length()));
+            } else if (arg.startsWith("--ai-command=")) {
+                aiCommand = arg.substring("--ai-command=".length());
+            } else if (arg.startsWith("--ai-queue=")) {
+                aiQueue = Integer.parseInt(arg.substring("--ai-queue=".length()));
+            } else if (arg.startsWith("--ai-concurrency=")) {
+                aiConcurrency = Integer.parseInt(arg.substring("--ai-concurrency=".length()));
+            } else if (arg.startsWith("--ai-cache-size=")) {
+                aiCacheSize = Integer.parseInt(arg.substring("--ai-cache-size=".length()));
+            } else if (arg.startsWith("--ai-cache-ttl-s=")) {
+                aiCacheTtlSeconds = Long.parseLong(arg.substring("--ai-cache-ttl-s=".length()));
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--session-ttl-s=")) {
+                sessionTtlSeconds = Long.parseLong(arg.substring("--session-ttl-s=".length()));
+            } else if (arg.startsWith("--mailbox-size=")) {
+                mailboxSize = Integer.parseInt(arg.substring("--mailbox-size=".length()));
+            } else if (arg.startsWith("--mailbox-sender-quota=")) {
+                mailboxSenderQuota = Integer.parseInt(arg.substring("--mailbox-sender-quota=".length()));
+            } else if (arg.startsWith("--mailbox-total-mb=")) {
+                mailboxTotalBytes = Long.parseLong(arg.substring("--mailbox-total-mb=".length())) << 20;
+            } else if (arg.startsWith("--search=")) {
+                String value = arg.substring("--search=".length());
+                if (!value.equals("on") && !value.equals("off")) {
+                    System.out.println("Unknown search setting: " + value + " (expected on or off)");
+                    return;
                 }
-                new Thread(clientHandler).start();
-                System.out.println("User " + userId + " connected.");
+                search = value.equals("on");
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = Integer.parseInt(arg.substring("--node-id=".length()));
+            } else if (arg.startsWith("--cluster=")) {
+                clusterNodes = arg.substring("--cluster=".length());
+            } else if (arg.startsWith("--bus=")) {
+                busName = arg.substring("--bus=".length());
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        ConnectionEngine engine;
+        try {
+            engine = ConnectionEngine.create(engineName, nioWorkers);
+            if (clusterNodes != null) {
+                cluster = new ChatCluster(nodeId, MessageBus.create(busName, nodeId, ChatCluster.parseNodes(clusterNodes)));
+                userIdCounter.set(ChatCluster.firstUserId(nodeId));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        System.out.println("Chat server started on port " + port + " (" + engine.name() + " engine)");
+        aiScheduler = new AiScheduler(aiCommand, aiQueue, aiConcurrency);
+        aiCache = new AiResponseCache(aiScheduler, aiCacheSize, aiCacheTtlSeconds);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(aiCache)));
+        if (sessionTtlSeconds > 0) {
+            sessions = new SessionRegistry(sessionTtlSeconds);
+        }
+        try {
+            openChatLog(logDir, logDurability, logFsyncMillis);
+            if (mailboxSize > 0) {
+                mailbox = Mailbox.open(logDir, mailboxSize, mailboxSenderQuota, mailboxTotalBytes);
+            }
+            seedUserIds(nodeId);
+            if (search) {
+                searchIndex = SearchIndex.open(chatStore, logDir, ChatServer::decrypt, crypto::termHash);
+                Runtime.getRuntime().addShutdownHook(new Thread(searchIndex::close));
+            }
+            if (cluster != null) {
+                cluster.start();
             }
+            registerMetrics();
+            if (metricsPort > 0) {
+                Metrics.startHttp(metricsPort);
+            }
+            engine.serve(port);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Sends a private message from sender to target user and logs for both.
-    public static void sendMessageTo(int targetUserId, String message, int senderId) {
-        String recipientMessage = "[User " + senderId + "] " + message;
-        String senderMessage = "You: (@" + targetUserId + ") " + message;
+    // Continues numbering above every user ID of this node that has a log or waiting mail.
+    // Sessions do not survive a restart, so a reused ID would hand its owner's history and
+    // mailbox to a stranger.
+    private static void seedUserIds(int nodeId) {
+        int first = ChatCluster.firstUserId(nodeId);
+        int end = nodeId * ChatCluster.ID_SPAN + ChatCluster.ID_SPAN;
+        int highest = chatStore.maxUserId(first, end);
+        if (mailbox != null) {
+            highest = Math.max(highest, mailbox.maxUserId(first, end));
+        }
+        if (highest >= userIdCounter.get()) {
+            userIdCounter.set(highest + 1);
+        }
+    }
+
+    // Allocates a user ID for a newly accepted connection and registers its handler.
+    static ClientHandler register(ClientConnection connection) {
+        int userId = userIdCounter.getAndIncrement();
+        ClientHandler clientHandler = new ClientHandler(connection, userId);
+        clients.put(userId, clientHandler);
+        if (cluster != null) {
+            cluster.userJoined(userId);
+        }
+        System.out.println("User " + userId + " connected.");
+        return clientHandler;
+    }
+
+    // IDs of the users connected to this server.
+    static Set<Integer> localUserIds() {
+        return clients.keySet();
+    }
+
+    // Opens the segmented log and starts the background log writer; records still queued are
+    // written on shutdown.
+    static void openChatLog(File directory, ChatLogWriter.Durability durability, long fsyncMillis)
+            throws IOException {
+        chatStore = SegmentedLog.open(directory, logSegmentBytes, logSegmentAgeMillis, logRetentionMillis,
+                logRetentionBytes);
+        chatLog = new ChatLogWriter(chatStore, durability, fsyncMillis);
+        Runtime.getRuntime().addShutdownHook(new Thread(chatLog::close));
+    }
+
+    // Writes everything still queued and closes the log files; for tools that open the log themselves.
+    static void closeChatLog() {
+        chatLog.close();
+    }
 
-        String encryptedRecipientMsg = encrypt(recipientMessage);
-        String encryptedSenderMsg = encrypt(senderMessage);
+    // True if a connection's first input line asks to switch to binary frames and the server
+    // offered them. Engines call this on their reader thread and switch input parsing there.
+    static boolean isFramesHello(String firstLine) {
+        return offerFrames && BinaryProtocol.HELLO.equals(firstLine);
+    }
 
-        ClientHandler targetClient;
-        synchronized(clients) {
-            targetClient = clients.get(targetUserId);
+    // Gauges for live state, read only when metrics are scraped; see Metrics for the rest.
+    static void registerMetrics() {
+        Metrics.gauge("clients", "Connected clients", clients::size);
+        Metrics.gauge("rooms", "Rooms with members on this server", rooms::size);
+        if (sessions != null) {
+            Metrics.gauge("sessions", "Resumable sessions, connected or not", sessions::size);
         }
-        if (targetClient != null) {
-            targetClient.sendMessage(decrypt(encryptedRecipientMsg));
-            logMessage(targetUserId, encryptedRecipientMsg);
-        } else {
-            ClientHandler sender;
-            synchronized(clients) {
-                sender = clients.get(senderId);
+        if (mailbox != null) {
+            Metrics.gauge("mailbox_messages", "Private messages waiting in offline mailboxes", mailbox::messageCount);
+            Metrics.gauge("mailbox_bytes", "Size of the mailbox file", mailbox::fileBytes);
+        }
+        Metrics.gauge("outbound_queued", "Messages waiting in all client outbound queues", () -> {
+            long total = 0;
+            for (ClientHandler client : clients.values()) {
+                total += client.connection.queuedMessages();
             }
-            if (sender != null) {
-                sender.sendMessage("User " + targetUserId + " is not online.");
+            return total;
+        });
+        Metrics.gauge("outbound_queue_max", "Longest client outbound queue", () -> {
+            long longest = 0;
+            for (ClientHandler client : clients.values()) {
+                longest = Math.max(longest, client.connection.queuedMessages());
             }
+            return longest;
+        });
+        Metrics.gauge("log_pending", "Records waiting for the log writer", chatLog::pending);
+        Metrics.gauge("log_segments", "Chat log segments on disk", chatStore::segmentCount);
+        Metrics.gauge("log_bytes", "Size of the chat log on disk", chatStore::totalBytes);
+        Metrics.gauge("ai_queued", "AI requests waiting for a model slot", aiScheduler::queuedCount);
+        Metrics.gauge("ai_cache_entries", "Cached AI replies", aiCache::size);
+        Metrics.counter("ai_cache_hits", "AI requests answered from the cache", aiCache::hits);
+        Metrics.counter("ai_cache_misses", "AI requests that ran the model", aiCache::misses);
+        Metrics.counter("ai_cache_coalesced", "AI requests that joined a running identical request", aiCache::coalesced);
+        Metrics.counter("ai_cache_evictions", "AI replies evicted from the cache", aiCache::evictions);
+        if (cluster != null) {
+            Metrics.gauge("cluster_remote_users", "Users online on other cluster nodes", cluster::remoteUserCount);
+            Metrics.counter("bus_dropped", "Messages for unreachable cluster nodes", cluster::droppedMessages);
         }
-        logMessage(senderId, encryptedSenderMsg);
+        Metrics.registerMBean();
     }
 
-    // Broadcasts a group message to all connected clients.
-    public static void broadcastMessage(String message, int senderId) {
-        String senderPrefix = "You: ";
-        String recipientPrefix = "[User " + senderId + "]: ";
-        String encryptedMsgForLog = encrypt("[" + senderId + "] " + message);
+    // Creates the outbound queue for a new connection using the configured slow-consumer policy.
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundQueueCapacity, slowConsumerPolicy);
+    }
 
-        synchronized(clients) {
-            for (Map.Entry<Integer, ClientHandler> entry : clients.entrySet()) {
-                int uid = entry.getKey();
-                ClientHandler client = entry.getValue();
-                if (uid == senderId) {
-                    client.sendMessage(senderPrefix + message);
+    // Sends a private message from sender to target user and logs for both. In cluster mode a
+    // user on another node is reached through that node, which logs the recipient's copy or,
+    // if the user is offline, keeps the message in their mailbox.
+    public static void sendMessageTo(int targetUserId, String message, int senderId) {
+        long start = System.nanoTime();
+        String senderMessage = "You: (@" + targetUserId + ") " + message;
+
+        if (!deliverPrivate(targetUserId, message, senderId)) {
+            if (cluster != null && !cluster.owns(targetUserId)) {
+                if (cluster.isOnline(targetUserId) || (mailbox != null && cluster.isReachable(targetUserId))) {
+                    cluster.sendPrivate(senderId, targetUserId, message);
                 } else {
-                    client.sendMessage(recipientPrefix + message);
+                    tell(senderId, "User " + targetUserId + " is not online.");
                 }
-                // Log the message for every client in the group chat.
-                logMessage(uid, encryptedMsgForLog);
+            } else if (!storeOffline(targetUserId, message, senderId)) {
+                tell(senderId, "User " + targetUserId + " is not online.");
             }
         }
+        long seq = logMessage(senderId, encrypt(senderMessage));
+        ClientHandler sender = clients.get(senderId);
+        if (sender != null) {
+            sender.seen(seq);
+        }
+        Metrics.PRIVATE_MESSAGE.recordSince(start);
+    }
+
+    // A private message from another cluster node for a user this node owns.
+    static void receivePrivate(int targetUserId, String message, int senderId) {
+        if (!deliverPrivate(targetUserId, message, senderId) && !storeOffline(targetUserId, message, senderId)) {
+            notifyUser(senderId, "User " + targetUserId + " is not online.");
+        }
+    }
+
+    // Delivers a private message to a user connected here and logs the recipient's copy.
+    // Returns false if the user is not connected to this server.
+    static boolean deliverPrivate(int targetUserId, String message, int senderId) {
+        ClientHandler targetClient = clients.get(targetUserId);
+        if (targetClient == null) {
+            return false;
+        }
+        String recipientMessage = "[User " + senderId + "] " + message;
+        long seq = logMessage(targetUserId, encrypt(recipientMessage));
+        targetClient.deliver(new OutboundMessage(BinaryProtocol.PRIVATE, senderId, targetUserId, message, recipientMessage), seq);
+        return true;
     }
 
-    // Logs an encrypted message to the user-specific file.
-    public static void logMessage(int userId, String message) {
-        String fileName = "ChatLogs/user_" + userId + ".txt";
-        try (FileWriter writer = new FileWriter(fileName, true)) {
-            writer.write(message + "\n");
+    // Keeps a private message for an offline user in their mailbox and tells the sender how it
+    // went. Returns false if there are no mailboxes or the user ID was never handed out here.
+    static boolean storeOffline(int targetUserId, String message, int senderId) {
+        if (mailbox == null || !isKnownUser(targetUserId)) {
+            return false;
+        }
+        Mailbox.Result result;
+        try {
+            result = mailbox.deposit(targetUserId, senderId, encrypt("[User " + senderId + "] " + message));
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
+        }
+        switch (result) {
+            case STORED:
+                Metrics.MAILBOX_STORED.increment();
+                tell(senderId, "User " + targetUserId + " is offline; they will get your message when they connect.");
+                // The user may have connected after the delivery check; their batch then goes now.
+                ClientHandler target = clients.get(targetUserId);
+                if (target != null) {
+                    mailDelivery.execute(target::deliverMail);
+                }
+                break;
+            case FULL:
+                Metrics.MAILBOX_REJECTED.increment();
+                tell(senderId, "User " + targetUserId + "'s mailbox is full; message not delivered.");
+                break;
+            case SENDER_QUOTA:
+                Metrics.MAILBOX_REJECTED.increment();
+                tell(senderId, "You already have the most messages allowed waiting for User " + targetUserId
+                        + "; message not delivered.");
+                break;
+            default:
+                Metrics.MAILBOX_REJECTED.increment();
+                tell(senderId, "Offline mailboxes are full; message not delivered.");
+        }
+        return true;
+    }
+
+    // True if the ID belongs to someone who has connected: every ID below the counter has been
+    // handed out, and none is handed out again after a restart (see seedUserIds).
+    private static boolean isKnownUser(int userId) {
+        return userId % ChatCluster.ID_SPAN >= 1000 && userId < userIdCounter.get();
+    }
+
+    // Shows a server notice to a user connected here, or on another node in cluster mode.
+    // Not logged; for replies to what the user just did.
+    static void tell(int userId, String text) {
+        ClientHandler handler = clients.get(userId);
+        if (handler != null) {
+            handler.deliver(new OutboundMessage(text));
+        } else if (cluster != null && !cluster.owns(userId)) {
+            cluster.notice(userId, text);
+        }
+    }
+
+    // Logs a server notice for a user and shows it if they are connected, so a user who is
+    // offline finds it in their history. In cluster mode the user's own node does this.
+    static void notifyUser(int userId, String text) {
+        if (cluster != null && !cluster.owns(userId)) {
+            cluster.notice(userId, text);
+            return;
+        }
+        long seq = logMessage(userId, encrypt(text));
+        ClientHandler handler = clients.get(userId);
+        if (handler != null) {
+            handler.deliver(new OutboundMessage(text), seq);
         }
     }
 
-    // Clears the chat history file for the given user by deleting it.
+    // Broadcasts a group message to all connected clients, and in cluster mode once to every
+    // other node, which does the same for its own clients.
+    public static void broadcastMessage(String message, int senderId) {
+        if (cluster != null) {
+            cluster.broadcast(senderId, message);
+        }
+        deliverGroup(message, senderId);
+    }
+
+    // Fans a group message out to the clients connected here. Each variant of the line is
+    // encoded once and the same bytes are queued for every recipient; no lock is held while
+    // doing so. The message is logged first so every copy carries its sequence number.
+    static void deliverGroup(String message, int senderId) {
+        long start = System.nanoTime();
+        OutboundMessage senderMessage = new OutboundMessage(BinaryProtocol.GROUP, senderId, 0, message, "You: " + message);
+        OutboundMessage recipientMessage = new OutboundMessage(BinaryProtocol.GROUP, senderId, 0, message,
+                "[User " + senderId + "]: " + message);
+        String encryptedMsgForLog = encrypt("[" + senderId + "] " + message);
+
+        ClientHandler[] handlers = clients.values().toArray(new ClientHandler[0]);
+        int count = handlers.length;
+        int[] recipients = new int[count];
+        for (int i = 0; i < count; i++) {
+            recipients[i] = handlers[i].userId;
+        }
+        // The message is stored once and referenced from every recipient's log.
+        long[] seqs = chatLog.appendGroup(recipients, encryptedMsgForLog);
+        for (int i = 0; i < count; i++) {
+            handlers[i].deliver(recipients[i] == senderId ? senderMessage : recipientMessage, seqs[i]);
+        }
+        Metrics.BROADCAST.recordSince(start);
+        Metrics.BROADCAST_RECIPIENTS.add(count);
+    }
+
+    // Adds the user to a room, creating it on first join. Returns the member count, or 0 if
+    // the user was already a member.
+    static int joinRoom(String name, int userId) {
+        int[] members = new int[1];
+        rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key);
+            }
+            members[0] = room.add(userId) ? room.size() : 0;
+            return room;
+        });
+        return members[0];
+    }
+
+    // Removes the user from a room; a room without members is dropped. False if not a member.
+    static boolean leaveRoom(String name, int userId) {
+        boolean[] left = new boolean[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            left[0] = room.remove(userId);
+            return room.isEmpty() ? null : room;
+        });
+        return left[0];
+    }
+
+    static boolean isRoomMember(String name, int userId) {
+        Room room = rooms.get(name);
+        return room != null && room.contains(userId);
+    }
+
+    static int roomSize(String name) {
+        Room room = rooms.get(name);
+        return room == null ? 0 : room.size();
+    }
+
+    // Sends a message to a room's members, and in cluster mode once to every other node,
+    // which does the same for its own members of the room.
+    public static void sendRoomMessage(String room, String message, int senderId) {
+        if (cluster != null) {
+            cluster.roomMessage(senderId, room, message);
+        }
+        deliverRoom(room, message, senderId);
+    }
+
+    // Fans a room message out to the room's members here. Only members are touched: the work
+    // and the log writes grow with the room, not with the number of connected users.
+    static void deliverRoom(String name, String message, int senderId) {
+        Room room = rooms.get(name);
+        if (room == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        int[] members = room.members();
+        OutboundMessage senderMessage = new OutboundMessage("You: (#" + name + ") " + message);
+        OutboundMessage memberMessage = new OutboundMessage("[#" + name + "][User " + senderId + "]: " + message);
+        long[] seqs = chatLog.appendGroup(members, encrypt("[#" + name + "][" + senderId + "] " + message));
+        for (int i = 0; i < members.length; i++) {
+            ClientHandler client = clients.get(members[i]);
+            if (client != null) {
+                client.deliver(members[i] == senderId ? senderMessage : memberMessage, seqs[i]);
+            }
+        }
+        Metrics.ROOM_MESSAGE.recordSince(start);
+    }
+
+    // Queues an encrypted message for the user's log; the log writer thread does the I/O.
+    // Returns the message's sequence number in that log.
+    public static long logMessage(int userId, String message) {
+        long start = System.nanoTime();
+        long seq = chatLog.append(userId, message);
+        Metrics.LOG_APPEND.recordSince(start);
+        return seq;
+    }
+
+    // Clears the chat history of the given user; the lines are dropped when compacted.
     public static void clearChatHistory(int userId) {
-        new File("ChatLogs/user_" + userId + ".txt").delete();
+        chatLog.clear(userId);
     }
 
-    // Encrypts a string with AES.
+    // Encrypts a string with AES-GCM into a versioned log line (see CryptoEngine).
     public static String encrypt(String str) {
+        long start = System.nanoTime();
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            SecretKey key = new SecretKeySpec(SECRET_KEY.getBytes(), "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            return Base64.getEncoder().encodeToString(cipher.doFinal(str.getBytes()));
+            return crypto.encryptLine(str);
         } catch (Exception e) {
             e.printStackTrace();
             return str;
+        } finally {
+            Metrics.ENCRYPT.recordSince(start);
         }
     }
 
-    // Decrypts a string with AES.
+    // Decrypts a log line; lines in the old AES/ECB format are still accepted.
     public static String decrypt(String str) {
+        long start = System.nanoTime();
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            SecretKey key = new SecretKeySpec(SECRET_KEY.getBytes(), "AES");
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            return new String(cipher.doFinal(Base64.getDecoder().decode(str)));
+            return crypto.decryptLine(str);
         } catch (Exception e) {
             e.printStackTrace();
             return str;
+        } finally {
+            Metrics.DECRYPT.recordSince(start);
         }
     }
 
-    // Calls the local Ollama AI model (deepseek-r1:1.5b or qwen2-math:1.5b)
-    public static String callAI(String prompt, String model) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder("ollama", "run", model, prompt);
-            Process process = pb.start();
-            process.getOutputStream().close();
+    // Queues a request for the local Ollama AI model (deepseek-r1:1.5b or qwen2-math:1.5b).
+    // The reply streams back to the user through the listener; the caller never waits.
+    // Repeated prompts are answered from the cache or share the model run already in progress.
+    public static void callAI(int userId, String prompt, String model, AiScheduler.Listener listener) {
+        aiCache.request(userId, model, prompt, listener);
+    }
 
-            BufferedReader stdReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            StringBuilder output = new StringBuilder();
-            String line;
-            while ((line = stdReader.readLine()) != null) {
-                output.append(line).append(" ");
-            }
+    // Protocol state for one connected user. The connection engine feeds it input lines or,
+    // after negotiation, decoded frames; it never touches the socket directly, so it works the
+    // same on every engine.
+    static class ClientHandler {
+        private final ClientConnection connection;
+        // Changes only when the connection resumes an earlier session.
+        private volatile int userId;
+        // This connection's session token; null when sessions are off.
+        private String sessionToken;
+        // Set once the client reads frames; only frames carry sequence numbers.
+        private volatile boolean framesMode;
+        // Sequence number of the oldest history line sent so far; \more continues from here.
+        private long historyCursor = Long.MAX_VALUE;
+        // Rooms this user has joined; left again on disconnect.
+        private final Set<String> joinedRooms = new HashSet<>();
+        // Hits of the last \search, best first, and how many have been shown.
+        private String searchQuery;
+        private long[] searchHits;
+        private int searchShown;
 
-            process.waitFor();
-            return output.toString().trim();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "Error calling AI model.";
+        ClientHandler(ClientConnection connection, int userId) {
+            this.connection = connection;
+            this.userId = userId;
         }
-    }
 
-    private static class ClientHandler implements Runnable {
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private int userId;
+        int userId() {
+            return userId;
+        }
 
-        public ClientHandler(Socket socket, int userId) {
-            this.socket = socket;
-            this.userId = userId;
+        // Sends the framing offer, user ID, session token and chat history to the client.
+        void onConnect() {
+            if (offerFrames) {
+                sendMessage(BinaryProtocol.OFFER);
+            }
+            sendMessage("Your User ID: " + userId);
+            if (sessions != null) {
+                sessionToken = sessions.open(userId);
+                sendMessage("Your Session: " + sessionToken);
+            }
+            sendChatHistory();
+            deliverMail();
         }
 
-        public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+        // Handles one line of client input.
+        void handleLine(String input) {
+            String trimmedInput = input.trim();
 
-                // Send user ID and chat history to client.
-                out.println("Your User ID: " + userId);
-                sendChatHistory();
+            // Check for the clear command.
+            if (trimmedInput.equals("\\clear")) {
+                clearHistory();
+                return;
+            }
 
-                String input;
-                while ((input = in.readLine()) != null) {
-                    String trimmedInput = input.trim();
+            // History paging: \more loads the page before the oldest one shown,
+            // \history <seq> loads the page ending just before message number <seq>.
+            if (trimmedInput.equals("\\more")) {
+                sendEarlierHistory();
+                return;
+            }
+            if (trimmedInput.startsWith("\\history")) {
+                try {
+                    long before = Long.parseLong(trimmedInput.substring("\\history".length()).trim());
+                    sendHistoryPage(before, "--- Earlier History ---");
+                } catch (NumberFormatException e) {
+                    sendMessage("Usage: \\history <message number>");
+                }
+                return;
+            }
+
+            // Search: \search <words> shows the best matching lines of this user's history,
+            // \search alone the next page of them.
+            if (trimmedInput.equals("\\search") || trimmedInput.startsWith("\\search ")) {
+                search(trimmedInput.substring("\\search".length()).trim());
+                return;
+            }
+
+            // Reconnect: \resume <token> [<last seq>] takes back the session's user ID and
+            // sends what was logged for it after <last seq>.
+            if (trimmedInput.startsWith("\\resume ")) {
+                String[] parts = trimmedInput.split("\\s+");
+                try {
+                    resume(parts[1], parts.length > 2 ? Long.parseLong(parts[2]) : -1);
+                } catch (NumberFormatException e) {
+                    sendMessage("Usage: \\resume <session> [<last message number>]");
+                }
+                return;
+            }
+
+            // Cancels this user's queued and running AI requests.
+            if (trimmedInput.equals("\\cancel")) {
+                aiCache.cancel(userId);
+                return;
+            }
+
+            // Rooms: \join <room>, \leave <room>, \rooms, and #<room> <message> to post.
+            if (trimmedInput.startsWith("\\join ") || trimmedInput.startsWith("\\leave ")) {
+                String[] parts = trimmedInput.split("\\s+", 2);
+                String room = parts.length == 2 ? Room.normalizeName(parts[1]) : null;
+                if (room == null) {
+                    sendMessage("Room names are 1-" + Room.MAX_NAME_LENGTH + " letters, digits, '-' or '_'.");
+                } else if (parts[0].equals("\\join")) {
+                    joinRoom(room);
+                } else {
+                    leaveRoom(room);
+                }
+                return;
+            }
+            if (trimmedInput.equals("\\rooms")) {
+                listRooms();
+                return;
+            }
+            if (trimmedInput.startsWith("#")) {
+                int space = trimmedInput.indexOf(' ');
+                String room = space > 1 ? Room.normalizeName(trimmedInput.substring(1, space)) : null;
+                if (room != null) {
+                    postToRoom(room, trimmedInput.substring(space + 1).trim());
+                    return;
+                }
+            }
 
-                    // Check for the clear command.
-                    if (trimmedInput.equals("\\clear")) {
-                        ChatServer.clearChatHistory(userId);
-                        continue;
+            // AI model selection: @math for math requests, @ai for general AI requests.
+            if (trimmedInput.toLowerCase().startsWith("@math")) {
+                askMath(trimmedInput.substring(5).trim());
+            } else if (trimmedInput.toLowerCase().startsWith("@ai")) {
+                askAi(trimmedInput.substring(3).trim());
+            }
+            // Private message: messages starting with '@' followed by the target userId.
+            else if (trimmedInput.startsWith("@")) {
+                String[] parts = trimmedInput.split(" ", 2);
+                if (parts.length == 2) {
+                    try {
+                        int targetUserId = Integer.parseInt(parts[0].substring(1));
+                        sendMessageTo(targetUserId, parts[1], userId);
+                    } catch (NumberFormatException e) {
+                        sendMessage("Invalid user ID format. Please use '@<userID> message'.");
                     }
+                } else {
+                    sendMessage("Invalid command. Use '@<userID> message' for private messaging.");
+                }
+            }
+            // Otherwise, treat the input as a group chat message.
+            else {
+                sendGroupMessage(trimmedInput);
+            }
+        }
+
+        // Handles one frame of client input. The type byte replaces the prefix parsing above;
+        // TEXT frames carry anything else in line syntax. The sender field is ignored.
+        void handleFrame(BinaryProtocol.Frame frame) {
+            switch (frame.type) {
+                case BinaryProtocol.GROUP:
+                    sendGroupMessage(frame.text.trim());
+                    break;
+                case BinaryProtocol.PRIVATE:
+                    sendMessageTo(frame.targetId, frame.text.trim(), userId);
+                    break;
+                case BinaryProtocol.AI:
+                    askAi(frame.text.trim());
+                    break;
+                case BinaryProtocol.MATH:
+                    askMath(frame.text.trim());
+                    break;
+                case BinaryProtocol.CLEAR:
+                    clearHistory();
+                    break;
+                case BinaryProtocol.MORE:
+                    sendEarlierHistory();
+                    break;
+                case BinaryProtocol.CANCEL:
+                    aiCache.cancel(userId);
+                    break;
+                case BinaryProtocol.TEXT:
+                    handleLine(frame.text);
+                    break;
+                default:
+                    sendMessage("Unknown message type " + frame.type + ".");
+            }
+        }
+
+        // Called by the engine, in input order, once the client has accepted binary frames.
+        // Everything queued for the client after this goes out as frames.
+        void startFrames() {
+            connection.sendAndWait(OutboundMessage.switchToFrames());
+            framesMode = true;
+        }
+
+        private void sendGroupMessage(String message) {
+            broadcastMessage(message, userId);
+            System.out.println("[Group][User " + userId + "]: " + message);
+        }
+
+        private void askAi(String prompt) {
+            seen(logMessage(userId, encrypt("You: (AI) " + prompt)));
+            callAI(userId, prompt, "deepseek-r1:1.5b", new AiReply("AI", BinaryProtocol.AI));
+        }
+
+        private void askMath(String prompt) {
+            seen(logMessage(userId, encrypt("You: (Math) " + prompt)));
+            callAI(userId, prompt, "qwen2-math:1.5b", new AiReply("AI-Math", BinaryProtocol.MATH));
+        }
+
+        private void joinRoom(String room) {
+            if (!joinedRooms.contains(room) && joinedRooms.size() >= MAX_ROOMS_PER_USER) {
+                sendMessage("You can be in at most " + MAX_ROOMS_PER_USER + " rooms.");
+                return;
+            }
+            int members = ChatServer.joinRoom(room, userId);
+            if (members == 0) {
+                sendMessage("You are already in #" + room + ".");
+                return;
+            }
+            joinedRooms.add(room);
+            sendMessage("Joined #" + room + " (" + members + (members == 1 ? " member here)." : " members here)."));
+        }
+
+        private void leaveRoom(String room) {
+            joinedRooms.remove(room);
+            sendMessage(ChatServer.leaveRoom(room, userId) ? "Left #" + room + "." : "You are not in #" + room + ".");
+        }
+
+        private void listRooms() {
+            if (joinedRooms.isEmpty()) {
+                sendMessage("You are not in any rooms. Type \\join <room> to join one.");
+                return;
+            }
+            StringBuilder list = new StringBuilder("Your rooms:");
+            for (String room : new TreeSet<>(joinedRooms)) {
+                list.append(" #").append(room).append(" (").append(roomSize(room)).append(')');
+            }
+            sendMessage(list.toString());
+        }
+
+        // A post to a room the user has not joined is refused rather than sent to everyone,
+        // so a mistyped room name cannot leak a message.
+        private void postToRoom(String room, String message) {
+            if (!isRoomMember(room, userId)) {
+                sendMessage("You are not in #" + room + ". Type \\join " + room + " to join it.");
+            } else if (!message.isEmpty()) {
+                sendRoomMessage(room, message, userId);
+            }
+        }
+
+        private void clearHistory() {
+            ChatServer.clearChatHistory(userId);
+            historyCursor = Long.MAX_VALUE;
+            searchHits = null;
+        }
 
-                    // AI model selection: @math for math requests, @ai for general AI requests.
-                    if (trimmedInput.toLowerCase().startsWith("@math")) {
-                        String prompt = trimmedInput.substring(8).trim();
-                        logMessage(userId, encrypt("You: (Math) " + prompt));
-                        String aiResponse = callAI(prompt, "qwen2-math:1.5b");
-                        sendMessage("AI-Math: " + aiResponse);
-                        logMessage(userId, encrypt("AI-Math: " + aiResponse));
-                    } else if (trimmedInput.toLowerCase().startsWith("@ai")) {
-                        String prompt = trimmedInput.substring(3).trim();
-                        logMessage(userId, encrypt("You: (AI) " + prompt));
-                        String aiResponse = callAI(prompt, "deepseek-r1:1.5b");
-                        sendMessage("AI: " + aiResponse);
-                        logMessage(userId, encrypt("AI: " + aiResponse));
+        // Runs a new search, or with no words shows the next page of the last one. Only the
+        // lines on the page are read and decrypted; the ranking comes from the index alone.
+        private void search(String query) {
+            if (searchIndex == null) {
+                sendMessage("Search is turned off on this server.");
+                return;
+            }
+            long start = System.nanoTime();
+            if (!query.isEmpty()) {
+                if (SearchIndex.terms(query).isEmpty()) {
+                    sendMessage("Usage: \\search <words>");
+                    return;
+                }
+                searchQuery = query;
+                searchHits = searchIndex.search(userId, query);
+                searchShown = 0;
+            } else if (searchHits == null) {
+                sendMessage("Usage: \\search <words>");
+                return;
+            }
+            if (searchHits.length == 0) {
+                sendMessage("No messages match \"" + searchQuery + "\".");
+                return;
+            }
+            if (searchShown >= searchHits.length) {
+                sendMessage("No more matches.");
+                return;
+            }
+            try {
+                int end = Math.min(searchShown + SEARCH_PAGE_SIZE, searchHits.length);
+                sendMessage("--- Search: " + searchQuery + " (" + searchHits.length
+                        + (searchHits.length == SearchIndex.MAX_HITS ? "+" : "")
+                        + (searchHits.length == 1 ? " match" : " matches") + ") ---");
+                for (int i = searchShown; i < end; i++) {
+                    long seq = searchHits[i];
+                    for (SegmentedLog.Line line : chatStore.read(userId, seq, seq + 1)) {
+                        sendMessage("#" + line.seq + " " + decrypt(line.text));
                     }
-                    // Private message: messages starting with '@' followed by the target userId.
-                    else if (trimmedInput.startsWith("@")) {
-                        String[] parts = trimmedInput.split(" ", 2);
-                        if (parts.length == 2) {
-                            try {
-                                int targetUserId = Integer.parseInt(parts[0].substring(1));
-                                sendMessageTo(targetUserId, parts[1], userId);
-                            } catch (NumberFormatException e) {
-                                sendMessage("Invalid user ID format. Please use '@<userID> message'.");
-                            }
-                        } else {
-                            sendMessage("Invalid command. Use '@<userID> message' for private messaging.");
+                }
+                sendMessage("--------------------");
+                searchShown = end;
+                if (end < searchHits.length) {
+                    sendMessage("(" + (searchHits.length - end) + " more, type \\search to see them)");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                Metrics.SEARCH.recordSince(start);
+            }
+        }
+
+        private void sendEarlierHistory() {
+            sendHistoryPage(historyCursor, "--- Earlier History ---");
+        }
+
+        // Takes over an earlier session: the temporary ID this connection got is released, a
+        // connection still holding the session is closed, and the client gets the lines it
+        // missed. The work grows with the number of missed lines, not the size of the log.
+        private void resume(String token, long lastSeq) {
+            SessionRegistry.Session session = sessions == null ? null : sessions.resume(token);
+            if (session == null) {
+                sendMessage("Session expired; continuing as User " + userId + ".");
+                return;
+            }
+            if (session.userId != userId) {
+                for (String room : joinedRooms) {
+                    ChatServer.leaveRoom(room, userId);
+                }
+                joinedRooms.clear();
+                if (clients.remove(userId, this) && cluster != null) {
+                    cluster.userLeft(userId);
+                }
+                aiCache.cancel(userId);
+                sessions.discard(sessionToken);
+                System.out.println("User " + userId + " resumed as User " + session.userId + ".");
+
+                userId = session.userId;
+                ClientHandler previous = clients.put(userId, this);
+                if (previous != null) {
+                    // The old connection keeps its rooms' memberships for us; see onDisconnect.
+                    for (Map.Entry<String, Room> room : rooms.entrySet()) {
+                        if (room.getValue().contains(userId)) {
+                            joinedRooms.add(room.getKey());
                         }
                     }
-                    // Otherwise, treat the input as a group chat message.
-                    else {
-                        broadcastMessage(trimmedInput, userId);
-                        System.out.println("[Group][User " + userId + "]: " + trimmedInput);
+                    previous.connection.close();
+                } else {
+                    if (cluster != null) {
+                        cluster.userJoined(userId);
+                    }
+                    for (String room : session.rooms) {
+                        ChatServer.joinRoom(room, userId);
+                        joinedRooms.add(room);
                     }
                 }
-            } catch (IOException e) {
-                System.out.println("User " + userId + " disconnected.");
-            } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            }
+            sessionToken = token;
+            historyCursor = Long.MAX_VALUE;
+            searchHits = null;
+            sendMessage("Your User ID: " + userId);
+            sendMessage("Your Session: " + token);
+            sendMissed(lastSeq);
+            deliverMail();
+        }
+
+        // Called exactly once by the engine after the connection has been closed. A connection
+        // whose session was taken over by a resume leaves the user's state to the new one.
+        void onDisconnect() {
+            if (!clients.remove(userId, this)) {
+                System.out.println("Connection of User " + userId + " replaced.");
+                return;
+            }
+            for (String room : joinedRooms) {
+                ChatServer.leaveRoom(room, userId);
+            }
+            if (cluster != null) {
+                cluster.userLeft(userId);
+            }
+            aiCache.cancel(userId);
+            if (sessionToken != null) {
+                sessions.suspend(sessionToken, new ArrayList<>(joinedRooms));
+            }
+            System.out.println("User " + userId + " disconnected.");
+        }
+
+        // Sends the lines logged after sequence number lastSeq. Without a usable position, or
+        // when too much was missed, the client gets the latest page as on a fresh connect.
+        private void sendMissed(long lastSeq) {
+            chatLog.awaitWritten(); // Include lines still queued for this user.
+            long start = System.nanoTime();
+            try {
+                long first = chatStore.firstSeq(userId);
+                long next = chatStore.nextSeq(userId);
+                long from = lastSeq + 1;
+                if (from < first || from > next) {
+                    sendMessage("Chat history cleared."); // Cleared or expired since.
                 }
-                synchronized(clients) {
-                    clients.remove(userId);
+                if (lastSeq < 0 || from < first || from > next || next - from > MAX_MISSED_LINES) {
+                    sendHistoryPage(Long.MAX_VALUE, "--- Chat History ---");
+                    return;
                 }
+                if (from == next) {
+                    sendMessage("No missed messages.");
+                    return;
+                }
+                sendMessage("--- Missed Messages ---");
+                sendLines(from, next);
+                sendMessage("--------------------");
+                historyCursor = from;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                Metrics.HISTORY_PAGE.recordSince(start);
             }
         }
 
-        // Reads the encrypted chat history, decrypts it, and sends it to the client.
+        // Sends the most recent page of chat history. Older pages are fetched on demand, so
+        // connecting costs the same however long the user's history is.
         private void sendChatHistory() {
-            String fileName = "ChatLogs/user_" + userId + ".txt";
-            File chatFile = new File(fileName);
-            if (chatFile.exists()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(chatFile))) {
-                    String line;
-                    out.println("--- Chat History ---");
-                    while ((line = reader.readLine()) != null) {
-                        out.println(decrypt(line));
+            chatLog.awaitWritten(); // Include lines still queued for this user.
+            sendHistoryPage(Long.MAX_VALUE, "--- Chat History ---");
+        }
+
+        // Sends up to one page of history lines that come before sequence number 'before'.
+        private void sendHistoryPage(long before, String header) {
+            long start = System.nanoTime();
+            try {
+                long first = chatStore.firstSeq(userId);
+                long to = Math.min(before, chatStore.nextSeq(userId));
+                long from = Math.max(first, to - historyPageSize);
+                if (from >= to) {
+                    if (before != Long.MAX_VALUE) {
+                        sendMessage("No earlier messages.");
                     }
-                    out.println("--------------------");
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    return;
+                }
+
+                sendMessage(header);
+                sendLines(from, to);
+                sendMessage("--------------------");
+                historyCursor = from;
+                if (from > first) {
+                    sendMessage("(" + (from - first) + " earlier messages, type \\more to load them)");
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                Metrics.HISTORY_PAGE.recordSince(start);
+            }
+        }
+
+        // Sends log lines [from, to), decrypted. Frames clients get each line's sequence number
+        // with it.
+        private void sendLines(long from, long to) throws IOException {
+            for (SegmentedLog.Line line : chatStore.read(userId, from, to)) {
+                OutboundMessage message = new OutboundMessage(decrypt(line.text));
+                connection.sendAndWait(framesMode ? message.withSeq(line.seq) : message);
             }
         }
 
+        // Streams one AI reply to the user: the first line carries the "AI:" / "AI-Math:" label,
+        // later lines are sent as "AI+ " continuations, and the full reply is logged at the end.
+        private class AiReply implements AiScheduler.Listener {
+            private final String label;
+            private final byte type;
+            private final long submitted = System.nanoTime();
+            private boolean started;
+
+            AiReply(String label, byte type) {
+                this.label = label;
+                this.type = type;
+                Metrics.AI_REQUESTS.increment();
+            }
+
+            public void onRejected(String reason) {
+                Metrics.AI_FAILURES.increment();
+                deliver(new OutboundMessage(reason));
+            }
+
+            public void onQueued(int position) {
+                deliver(new OutboundMessage("AI request queued, position " + position + "."));
+            }
+
+            public void onLine(String line) {
+                if (started) {
+                    deliver(new OutboundMessage(BinaryProtocol.AI_MORE, 0, userId, line, "AI+ " + line));
+                } else {
+                    deliver(new OutboundMessage(type, 0, userId, line, label + ": " + line));
+                    started = true;
+                }
+            }
+
+            public void onDone(String response) {
+                long seq = logMessage(userId, encrypt(label + ": " + response));
+                if (started) {
+                    seen(seq);
+                } else {
+                    deliver(new OutboundMessage(type, 0, userId, response, label + ": " + response), seq);
+                }
+                Metrics.AI_REPLY.recordSince(submitted);
+            }
+
+            public void onError(String message) {
+                Metrics.AI_FAILURES.increment();
+                long seq = logMessage(userId, encrypt(label + ": " + message));
+                deliver(new OutboundMessage(type, 0, userId, message, label + ": " + message), seq);
+            }
+
+            public void onCancelled() {
+                Metrics.AI_FAILURES.increment();
+                deliver(new OutboundMessage("AI request cancelled."));
+            }
+        }
+
+        // Replies to this user, waiting for queue space. Only call from this user's own input handling.
         public void sendMessage(String message) {
-            out.println(message);
+            connection.sendAndWait(new OutboundMessage(message));
+        }
+
+        // Queues a message from another user; never blocks the caller.
+        void deliver(OutboundMessage message) {
+            connection.send(message);
+        }
+
+        // Like deliver, for a message logged for this user under the given sequence number.
+        void deliver(OutboundMessage message, long seq) {
+            connection.send(framesMode ? message.withSeq(seq) : message);
+        }
+
+        // Hands over the user's offline mailbox in one batch, logging each message as if it had
+        // just arrived, then tells every sender how many of theirs were delivered. Costs one map
+        // lookup when the mailbox is empty. Otherwise blocks on disk: the messages leave the
+        // mailbox only once the chat log has synced them, so a crash may deliver them twice but
+        // never loses them.
+        void deliverMail() {
+            if (mailbox == null) {
+                return;
+            }
+            int recipientId = userId;
+            try {
+                List<Mailbox.Mail> mail;
+                while (!(mail = mailbox.take(recipientId)).isEmpty()) {
+                    Map<Integer, Integer> perSender = new LinkedHashMap<>();
+                    boolean removed = false;
+                    try {
+                        deliver(new OutboundMessage("--- Offline Messages ---"));
+                        for (Mailbox.Mail item : mail) {
+                            long seq = logMessage(recipientId, item.line);
+                            String line = decrypt(item.line);
+                            String prefix = "[User " + item.senderId + "] ";
+                            String text = line.startsWith(prefix) ? line.substring(prefix.length()) : line;
+                            deliver(new OutboundMessage(BinaryProtocol.PRIVATE, item.senderId, recipientId, text, line), seq);
+                            perSender.merge(item.senderId, 1, Integer::sum);
+                        }
+                        deliver(new OutboundMessage("--------------------"));
+                        chatLog.awaitSynced();
+                        mailbox.remove(recipientId, mail.size());
+                        removed = true;
+                    } finally {
+                        if (!removed) {
+                            mailbox.release(recipientId); // Kept for the next connect.
+                        }
+                    }
+                    Metrics.MAILBOX_DELIVERED.add(mail.size());
+                    for (Map.Entry<Integer, Integer> sender : perSender.entrySet()) {
+                        int count = sender.getValue();
+                        notifyUser(sender.getKey(), "User " + recipientId + " received "
+                                + (count == 1 ? "your offline message." : "your " + count + " offline messages."));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Tells the client the sequence number of a logged line it already shows.
+        void seen(long seq) {
+            if (framesMode) {
+                connection.send(OutboundMessage.seen(seq));
+            }
         }
     }
 }
@@ -0,0 +1,15 @@
+// Outbound half of a client connection. Each connection engine supplies its own implementation,
+// backed by a bounded OutboundQueue and a writer that drains it.
+public interface ClientConnection {
+    // Queues a message without blocking; a full queue triggers the slow-consumer policy.
+    void send(OutboundMessage message);
+
+    // Queues a message, waiting for queue space. Only for the user's own replies.
+    void sendAndWait(OutboundMessage message);
+
+    // Messages waiting to be written; read by the metrics gauges.
+    int queuedMessages();
+
+    // Closes the connection. The engine then calls ClientHandler.onDisconnect exactly once.
+    void close();
+}
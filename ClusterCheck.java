@@ -0,0 +1,247 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end check of cluster mode on one machine: starts three ChatServer nodes as child
+// processes on loopback, connects a text client to each and verifies cross-node private
+// messages, group fan-out, rooms, offline mailboxes, user IDs and links after a node restarts
+// and presence after a node dies. Prints one line per check and exits with status 1 if any fails.
+//
+// Usage: java ClusterCheck [--bus=batched|direct] [--port=12600]
+// Uses ports port..port+2 for clients and port+100..port+102 for the bus.
+public class ClusterCheck {
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        String bus = "batched";
+        int port = 12600;
+        for (String arg : args) {
+            if (arg.startsWith("--bus=")) {
+                bus = arg.substring("--bus=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+        }
+
+        int nodes = 3;
+        StringBuilder cluster = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            cluster.append(i == 0 ? "" : ",").append(i).append("=127.0.0.1:").append(port + 100 + i);
+        }
+        List<Process> servers = new ArrayList<>();
+        List<Client> clients = new ArrayList<>();
+        Path workDir = Files.createTempDirectory("chat-cluster");
+        try {
+            for (int i = 0; i < nodes; i++) {
+                servers.add(startNode(workDir, i, port + i, cluster.toString(), bus));
+            }
+            for (int i = 0; i < nodes; i++) {
+                awaitListening(port + i);
+            }
+            for (int i = 0; i < nodes; i++) {
+                clients.add(new Client(port + i));
+            }
+            Client a = clients.get(0);
+            Client b = clients.get(1);
+            Client c = clients.get(2);
+            check("user IDs are partitioned by node",
+                    ChatCluster.ownerOf(a.userId) == 0 && ChatCluster.ownerOf(b.userId) == 1
+                            && ChatCluster.ownerOf(c.userId) == 2);
+
+            // Links come up and presence spreads asynchronously, so the first message between
+            // each pair is retried until it arrives.
+            boolean allPairs = true;
+            for (Client from : clients) {
+                for (Client to : clients) {
+                    if (from != to) {
+                        String text = "hello from " + from.userId;
+                        allPairs &= eventually(from, "@" + to.userId + " " + text, to, "[User " + from.userId + "] " + text);
+                    }
+                }
+            }
+            check("private messages between every pair of nodes", allPairs);
+
+            b.send("group hello");
+            check("group message reaches node 0", a.await("[User " + b.userId + "]: group hello", TIMEOUT_MILLIS));
+            check("group message reaches node 2", c.await("[User " + b.userId + "]: group hello", TIMEOUT_MILLIS));
+            check("group message echoed to its sender", b.await("You: group hello", TIMEOUT_MILLIS));
+
+            a.send("\\join ops");
+            c.send("\\join ops");
+            a.await("Joined #ops (1 member here).", TIMEOUT_MILLIS);
+            c.await("Joined #ops (1 member here).", TIMEOUT_MILLIS);
+            a.send("#ops room hello");
+            b.send("group marker");
+            check("room message reaches a member on node 2", c.await("[#ops][User " + a.userId + "]: room hello", TIMEOUT_MILLIS));
+            // Read what b got up to the echo of its own later message.
+            boolean leaked = false;
+            String line;
+            while ((line = b.next(TIMEOUT_MILLIS)) != null && !line.equals("You: group marker")) {
+                leaked |= line.contains("room hello");
+            }
+            check("room message skips non-members", line != null && !leaked);
+
+            b.close();
+            check("message to a departed user goes to their mailbox",
+                    eventually(a, "@" + b.userId + " are you there?", a,
+                            "User " + b.userId + " is offline; they will get your message when they connect."));
+            Client back = new Client(port + 1);
+            clients.add(back);
+            back.send("\\resume " + b.session + " -1");
+            check("mailbox delivered when the user is back",
+                    back.await("[User " + a.userId + "] are you there?", TIMEOUT_MILLIS));
+            check("sender told of the delivery",
+                    a.await("User " + b.userId + " received your offline message.", TIMEOUT_MILLIS));
+
+            // Sessions end with a restart, but logs and mailboxes do not; their IDs must stay taken.
+            back.close();
+            eventually(a, "@" + b.userId + " secret for " + b.userId, a,
+                    "User " + b.userId + " is offline; they will get your message when they connect.");
+            servers.get(1).destroy();
+            servers.get(1).waitFor();
+            servers.set(1, startNode(workDir, 1, port + 1, cluster.toString(), bus));
+            awaitListening(port + 1);
+            Client stranger = new Client(port + 1);
+            clients.add(stranger);
+            check("restarted node does not reuse user IDs", stranger.userId > b.userId);
+            check("mail never reaches a reassigned ID",
+                    !stranger.await("[User " + a.userId + "] secret for " + b.userId, 1000));
+            check("restarted node can take mail again",
+                    eventually(a, "@" + b.userId + " after the restart", a,
+                            "User " + b.userId + " is offline; they will get your message when they connect."));
+            check("private message reaches the restarted node",
+                    eventually(a, "@" + stranger.userId + " welcome back", stranger,
+                            "[User " + a.userId + "] welcome back"));
+
+            servers.get(2).destroy();
+            servers.get(2).waitFor();
+            check("users of a dead node are reported offline",
+                    eventually(a, "@" + c.userId + " are you there?", a, "User " + c.userId + " is not online."));
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            for (Process server : servers) {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+        System.out.println(failures == 0 ? "All checks passed (" + bus + " bus)." : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static Process startNode(Path workDir, int node, int port, String cluster, String bus) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", new File(System.getProperty("java.class.path")).getAbsolutePath(),
+                "ChatServer", "--port=" + port, "--protocol=text", "--log-dir=node" + node,
+                "--node-id=" + node, "--cluster=" + cluster, "--bus=" + bus);
+        pb.directory(workDir.toFile());
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(workDir.resolve("node" + node + ".out").toFile());
+        return pb.start();
+    }
+
+    // Sends the message until the receiver sees the expected line.
+    private static boolean eventually(Client sender, String message, Client receiver, String expected) throws Exception {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            sender.send(message);
+            if (receiver.await(expected, 500)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS  " : "FAIL  ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // A text-protocol client whose input lines are collected by a reader thread.
+    private static final class Client {
+        private final Socket socket;
+        private final Writer out;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final int userId;
+        final String session;
+
+        Client(int port) throws Exception {
+            socket = new Socket("127.0.0.1", port);
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            Thread reader = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            String first = lines.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null || !first.startsWith("Your User ID: ")) {
+                throw new IOException("Unexpected greeting from port " + port + ": " + first);
+            }
+            userId = Integer.parseInt(first.substring("Your User ID: ".length()).trim());
+            String second = lines.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            session = second != null && second.startsWith("Your Session: ")
+                    ? second.substring("Your Session: ".length()).trim() : null;
+        }
+
+        void send(String line) throws IOException {
+            out.write(line + "\n");
+            out.flush();
+        }
+
+        // Waits for the expected line, skipping any others.
+        boolean await(String expected, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left;
+            while ((left = deadline - System.currentTimeMillis()) > 0) {
+                String line = lines.poll(left, TimeUnit.MILLISECONDS);
+                if (expected.equals(line)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String next(long timeoutMillis) throws InterruptedException {
+            return lines.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
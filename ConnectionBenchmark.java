@@ -0,0 +1,151 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compares connection engines: starts a ChatServer child process per engine, opens N idle
+// client connections against it and reports the server's thread count and resident memory.
+//
+// Usage: java ConnectionBenchmark [--connections=5000] [--engines=threads,virtual,nio,nio-virtual] [--port=12400]
+// Large connection counts need a raised open-file limit (ulimit -n).
+public class ConnectionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int connections = 5000;
+        String[] engines = {"threads", "virtual", "nio", "nio-virtual"};
+        int port = 12400;
+        for (String arg : args) {
+            if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring("--connections=".length()));
+            } else if (arg.startsWith("--engines=")) {
+                engines = arg.substring("--engines=".length()).split(",");
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+        }
+
+        System.out.printf("%-11s %12s %10s %10s %12s %12s%n",
+                "engine", "connections", "connect ms", "threads", "rss MB", "fan-out ms");
+        for (String engine : engines) {
+            run(engine, connections, port++);
+        }
+    }
+
+    private static void run(String engine, int connections, int port) throws Exception {
+        Path workDir = Files.createTempDirectory("chat-bench-" + engine);
+        ProcessBuilder pb = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", new File(System.getProperty("java.class.path")).getAbsolutePath(),
+                "ChatServer", "--engine=" + engine, "--port=" + port, "--protocol=text", "--session-ttl-s=0");
+        pb.directory(workDir.toFile());
+        pb.redirectErrorStream(true);
+        Process server = pb.start();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            BufferedReader serverOut = new BufferedReader(new InputStreamReader(server.getInputStream()));
+            String banner;
+            while ((banner = serverOut.readLine()) != null && !banner.startsWith("Chat server started")) {
+                System.out.println(engine + ": " + banner);
+            }
+            if (banner == null) {
+                System.out.println(engine + ": server exited before starting");
+                return;
+            }
+            Thread drain = new Thread(() -> {
+                try {
+                    while (serverOut.readLine() != null) {
+                        // Discard per-connection log lines.
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+
+            awaitListening(port);
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 10_000);
+                socket.setSoTimeout(30_000);
+                sockets.add(socket);
+            }
+            for (Socket socket : sockets) {
+                readLine(socket.getInputStream()); // "Your User ID: ..."
+            }
+            long connectMillis = (System.nanoTime() - start) / 1_000_000;
+
+            Thread.sleep(1000); // Let the server settle before sampling.
+            String threads = procStatus(server.pid(), "Threads");
+            String rss = procStatus(server.pid(), "VmRSS");
+            String rssMb = rss.endsWith("kB")
+                    ? String.valueOf(Long.parseLong(rss.replace("kB", "").trim()) / 1024)
+                    : rss;
+
+            // One group message to everyone: time until the last client has it.
+            start = System.nanoTime();
+            OutputStream first = sockets.get(0).getOutputStream();
+            first.write("benchmark ping\n".getBytes(StandardCharsets.UTF_8));
+            first.flush();
+            for (Socket socket : sockets) {
+                readLine(socket.getInputStream());
+            }
+            long fanOutMillis = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.printf("%-11s %12d %10d %10s %12s %12d%n",
+                    engine, connections, connectMillis, threads, rssMb, fanOutMillis);
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // The banner is printed just before the engine binds, so poll until the port accepts.
+    private static void awaitListening(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // Reads one line byte by byte so no per-socket buffers pile up in the benchmark itself.
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    // Reads a field from /proc/<pid>/status; returns "n/a" where that is unavailable.
+    private static String procStatus(long pid, String field) {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(field + ":")) {
+                    return line.substring(field.length() + 1).trim();
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return "n/a";
+    }
+}
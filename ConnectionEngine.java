@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+// Accepts client sockets and drives their I/O. Selected with --engine when the server starts.
+public interface ConnectionEngine {
+    String name();
+
+    // Binds the port and serves connections until the process exits.
+    void serve(int port) throws IOException;
+
+    // nioWorkers is the size of the nio engine's handler pool.
+    static ConnectionEngine create(String name, int nioWorkers) {
+        switch (name) {
+            case "threads":
+                return new BlockingConnectionEngine("threads", Thread::new);
+            case "virtual":
+                ThreadFactory factory = BlockingConnectionEngine.virtualThreadFactory();
+                if (factory == null) {
+                    System.out.println("Virtual threads need Java 21+, falling back to platform threads.");
+                    return new BlockingConnectionEngine("threads", Thread::new);
+                }
+                return new BlockingConnectionEngine("virtual", factory);
+            case "nio":
+                return new NioConnectionEngine("nio", Runtime.getRuntime().availableProcessors(),
+                        NioConnectionEngine.workerPool(nioWorkers));
+            case "nio-virtual":
+                ExecutorService workers = NioConnectionEngine.virtualWorkers();
+                if (workers == null) {
+                    System.out.println("Virtual threads need Java 21+, falling back to a pool of " + nioWorkers + " threads.");
+                    return new NioConnectionEngine("nio", Runtime.getRuntime().availableProcessors(),
+                            NioConnectionEngine.workerPool(nioWorkers));
+                }
+                return new NioConnectionEngine("nio-virtual", Runtime.getRuntime().availableProcessors(), workers);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name
+                        + " (expected threads, virtual, nio or nio-virtual)");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// AES for chat log records. The key spec is built once and every thread keeps its own Cipher
+// instances, so the hot path does no provider lookup and allocates only its output.
+//
+// Record format, version 2:  [0x02][12-byte nonce][AES-GCM ciphertext + 16-byte tag]
+// As a log line that is "v2:" followed by the Base64 of the record. Lines without the prefix
+// are the legacy format (Base64 of AES/ECB ciphertext) and are still decrypted.
+public class CryptoEngine {
+    static final byte VERSION_GCM = 2;
+    private static final String LINE_PREFIX = "v2:";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int HEADER_LENGTH = 1 + NONCE_LENGTH;
+    private static final byte[] AAD = {VERSION_GCM};
+
+    private final SecretKeySpec key;
+    // Keys search terms; derived from the log key so the index reveals no words.
+    private final SecretKeySpec termKey;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<ThreadState> state = ThreadLocal.withInitial(ThreadState::new);
+
+    public CryptoEngine(byte[] keyBytes) {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(keyBytes, "HmacSHA256"));
+            this.termKey = new SecretKeySpec(mac.doFinal("search terms".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    // A 64-bit keyed hash of a search term (the first 8 bytes of its HMAC-SHA256), so the search
+    // index can be kept on disk without the words in it.
+    public long termHash(String term) {
+        Mac mac = state.get().mac;
+        return ByteBuffer.wrap(mac.doFinal(term.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    // Encrypts plaintext into a version 2 record.
+    public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+        ThreadState s = state.get();
+        byte[] record = new byte[HEADER_LENGTH + plaintext.length + TAG_BITS / 8];
+        record[0] = VERSION_GCM;
+        s.nextNonce(record, 1);
+        s.gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, record, 1, NONCE_LENGTH));
+        s.gcm.updateAAD(AAD);
+        s.gcm.doFinal(plaintext, 0, plaintext.length, record, HEADER_LENGTH);
+        return record;
+    }
+
+    // Decrypts and authenticates a version 2 record.
+    public byte[] open(byte[] record) throws GeneralSecurityException {
+        if (record.length < HEADER_LENGTH + TAG_BITS / 8 || record[0] != VERSION_GCM) {
+            throw new GeneralSecurityException("Unsupported record version");
+        }
+        Cipher gcm = state.get().gcm;
+        gcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, record, 1, NONCE_LENGTH));
+        gcm.updateAAD(AAD);
+        return gcm.doFinal(record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+    }
+
+    // Same as open, reading the record from the buffer's remaining bytes.
+    public byte[] open(ByteBuffer record) throws GeneralSecurityException {
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return open(bytes);
+    }
+
+    // Encrypts a string into a log line.
+    public String encryptLine(String text) throws GeneralSecurityException {
+        return LINE_PREFIX + Base64.getEncoder().encodeToString(seal(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Decrypts a log line in either the current or the legacy format.
+    public String decryptLine(String line) throws GeneralSecurityException {
+        if (line.startsWith(LINE_PREFIX)) {
+            byte[] record = Base64.getDecoder().decode(line.substring(LINE_PREFIX.length()));
+            return new String(open(record), StandardCharsets.UTF_8);
+        }
+        Cipher ecb = state.get().legacy();
+        ecb.init(Cipher.DECRYPT_MODE, key);
+        // Legacy lines were encoded with the platform charset; that is what reads them back.
+        return new String(ecb.doFinal(Base64.getDecoder().decode(line)));
+    }
+
+    private final class ThreadState {
+        final Cipher gcm;
+        final Mac mac;
+        private Cipher ecb;
+        // Nonce = 8 random bytes per thread + 4-byte counter; the prefix is re-rolled when the
+        // counter wraps, so a nonce is never repeated under this key.
+        private final byte[] noncePrefix = new byte[8];
+        private int counter;
+
+        ThreadState() {
+            try {
+                gcm = Cipher.getInstance("AES/GCM/NoPadding");
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(termKey);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/GCM or HmacSHA256 not available", e);
+            }
+            random.nextBytes(noncePrefix);
+        }
+
+        Cipher legacy() throws GeneralSecurityException {
+            if (ecb == null) {
+                ecb = Cipher.getInstance("AES");
+            }
+            return ecb;
+        }
+
+        void nextNonce(byte[] out, int offset) {
+            if (counter == -1) {
+                random.nextBytes(noncePrefix);
+            }
+            counter++;
+            System.arraycopy(noncePrefix, 0, out, offset, noncePrefix.length);
+            out[offset + 8] = (byte) (counter >>> 24);
+            out[offset + 9] = (byte) (counter >>> 16);
+            out[offset + 10] = (byte) (counter >>> 8);
+            out[offset + 11] = (byte) counter;
+        }
+    }
+}
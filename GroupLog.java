@@ -0,0 +1,65 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// The group message file of logs written before segments existed: every group message once,
+// referred to from a user's log by its byte offset with a line of the form "#G<offset>"; '#'
+// never occurs in the Base64 of an encrypted line. Only read now, to import such logs (see
+// SegmentedLog).
+public final class GroupLog {
+    static final String FILE_NAME = "group.log";
+    private static final String REF_PREFIX = "#G";
+
+    private GroupLog() {
+    }
+
+    static boolean isRef(String line) {
+        return line.startsWith(REF_PREFIX);
+    }
+
+    static long offsetOf(String ref) {
+        return Long.parseLong(ref.substring(REF_PREFIX.length()));
+    }
+
+    // Resolves references with positional reads.
+    static class Reader implements Closeable {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(512);
+
+        Reader(File directory) throws IOException {
+            this.channel = FileChannel.open(new File(directory, FILE_NAME).toPath(), StandardOpenOption.READ);
+        }
+
+        // Returns the record starting at offset, or null if it was never fully written.
+        String read(long offset) throws IOException {
+            buffer.clear();
+            int scanned = 0;
+            while (true) {
+                int n = channel.read(buffer, offset + buffer.position());
+                for (int i = scanned; i < buffer.position(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        return new String(buffer.array(), 0, i, StandardCharsets.UTF_8);
+                    }
+                }
+                scanned = buffer.position();
+                if (n < 0) {
+                    return null;
+                }
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
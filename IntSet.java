@@ -0,0 +1,138 @@
+import java.util.Arrays;
+
+// Set of ints without boxing: open addressing with linear probing in a single int[]. A room
+// of five members costs a 16-slot array; one of 10000 about 64 KB, where a HashSet<Integer>
+// would need several times that. The table doubles above 1/2 full and halves below 1/8, so a
+// room that empties gives its memory back. Not thread-safe.
+public final class IntSet {
+    private static final int MIN_CAPACITY = 8;
+    // Marks an empty slot; the value itself is tracked by hasEmptyValue.
+    private static final int EMPTY = 0;
+
+    private int[] slots = new int[MIN_CAPACITY];
+    private int size;
+    private boolean hasEmptyValue;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int value) {
+        if (value == EMPTY) {
+            return hasEmptyValue;
+        }
+        int mask = slots.length - 1;
+        for (int i = hash(value) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns false if the value was already present.
+    public boolean add(int value) {
+        if (value == EMPTY) {
+            if (hasEmptyValue) {
+                return false;
+            }
+            hasEmptyValue = true;
+            size++;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        for (; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return false;
+            }
+        }
+        slots[i] = value;
+        size++;
+        if (size * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+
+    // Returns false if the value was not present.
+    public boolean remove(int value) {
+        if (value == EMPTY) {
+            if (!hasEmptyValue) {
+                return false;
+            }
+            hasEmptyValue = false;
+            size--;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        while (slots[i] != value) {
+            if (slots[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // Shift later entries of the probe run back so no tombstones are needed.
+        int gap = i;
+        for (int j = (gap + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hash(slots[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                slots[gap] = slots[j];
+                gap = j;
+            }
+        }
+        slots[gap] = EMPTY;
+        size--;
+        if (slots.length > MIN_CAPACITY && size * 8 < slots.length) {
+            resize(slots.length / 2);
+        }
+        return true;
+    }
+
+    // The values in no particular order.
+    public int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        if (hasEmptyValue) {
+            values[n++] = EMPTY;
+        }
+        for (int slot : slots) {
+            if (slot != EMPTY) {
+                values[n++] = slot;
+            }
+        }
+        return values;
+    }
+
+    public String toString() {
+        int[] values = toArray();
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != EMPTY) {
+                int i = hash(value) & mask;
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    // User IDs are sequential; spread them so neighbours do not share a probe run.
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram in nanoseconds. Buckets are log-linear: every power of two is
+// split into 8 sub-buckets, so a reported percentile is within 12.5% of the true value.
+// Recording is a few atomic increments and allocates nothing; percentiles are computed only
+// when somebody reads them.
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Values below this get a bucket each.
+    private static final int LINEAR_LIMIT = SUB_COUNT * 2;
+    private static final int BUCKETS = (62 - SUB_BITS) * SUB_COUNT + 2 * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketOf(nanos));
+        sum.add(nanos);
+        long seen = max.get();
+        while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+            seen = max.get();
+        }
+    }
+
+    // Records the time elapsed since a System.nanoTime() reading.
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the given quantile (0..1), or 0 if nothing was recorded.
+    public long percentileNanos(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long top = SUB_COUNT + bucket % SUB_COUNT;
+        return ((top + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator for a running ChatServer. Opens many client connections over the
+// same wire protocol as ChatClientGUI, drives a weighted mix of scenarios at a fixed total
+// rate and reports throughput and latency percentiles. Every generated message carries the
+// time it was due to be sent, so delivery latency is measured end to end on the receiving
+// connection (and includes any time the sender itself fell behind). A reconnect resumes its
+// session with the last sequence number it saw (frames only; text gets the latest history page)
+// and its latency runs until the missed lines have arrived and the connection can send again.
+//
+// Usage: java LoadGenerator [--host=127.0.0.1] [--port=12345] [--clients=1000] [--rate=200]
+//                           [--mix=group=20,private=70,reconnect=5,ai=5] [--duration-s=30]
+//                           [--warmup-s=5] [--message-bytes=64] [--protocol=text|frames]
+//                           [--senders=4]
+//
+// --rate is scenario actions per second across all clients. Large client counts need a
+// raised open-file limit (ulimit -n) on both sides.
+public class LoadGenerator {
+    // Marks generated messages: MARKER <kind> <due nanos> <padding>. Must not start with #,
+    // which would make a group message a room post.
+    private static final String MARKER = "~lg ";
+    private static final String[] AI_PROMPTS = {
+            "What is a linked list?", "Explain recursion briefly.", "What does TCP stand for?",
+            "Name three sorting algorithms.", "What is a hash map?"};
+    // Reader threads spend their life blocked in read(); they need very little stack.
+    private static final long READER_STACK_SIZE = 128 * 1024;
+
+    enum Scenario {
+        GROUP, PRIVATE, RECONNECT, AI;
+
+        static Scenario parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static String host = "127.0.0.1";
+    private static int port = 12345;
+    private static boolean frames;
+    private static int messageBytes = 64;
+
+    // User ID of each client slot, 0 while it first connects; private messages pick from here.
+    // A reconnecting client keeps its ID, so messages sent meanwhile wait in its mailbox.
+    private static AtomicIntegerArray userIds;
+    // Only messages due after this are measured; earlier ones are warmup.
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    private static final LatencyHistogram GROUP_LATENCY = new LatencyHistogram();
+    private static final LatencyHistogram PRIVATE_LATENCY = new LatencyHistogram();
+    private static final LatencyHistogram RECONNECT_LATENCY = new LatencyHistogram();
+    private static final LatencyHistogram AI_LATENCY = new LatencyHistogram();
+    private static final LongAdder[] SENT = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+    private static final LongAdder DELIVERED = new LongAdder();
+    private static final LongAdder SKIPPED = new LongAdder();
+    private static final LongAdder REPLAYED = new LongAdder();
+    private static final LongAdder AI_REJECTED = new LongAdder();
+    private static final LongAdder CONNECTION_ERRORS = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 1000;
+        double rate = 200;
+        String mix = "group=20,private=70,reconnect=5,ai=5";
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        int senderCount = 4;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--mix=")) {
+                mix = arg.substring("--mix=".length());
+            } else if (arg.startsWith("--duration-s=")) {
+                durationSeconds = Integer.parseInt(arg.substring("--duration-s=".length()));
+            } else if (arg.startsWith("--warmup-s=")) {
+                warmupSeconds = Integer.parseInt(arg.substring("--warmup-s=".length()));
+            } else if (arg.startsWith("--message-bytes=")) {
+                messageBytes = Integer.parseInt(arg.substring("--message-bytes=".length()));
+            } else if (arg.startsWith("--protocol=")) {
+                String protocol = arg.substring("--protocol=".length());
+                if (!protocol.equals("text") && !protocol.equals("frames")) {
+                    System.out.println("Unknown protocol: " + protocol + " (expected text or frames)");
+                    return;
+                }
+                frames = protocol.equals("frames");
+            } else if (arg.startsWith("--senders=")) {
+                senderCount = Math.max(1, Integer.parseInt(arg.substring("--senders=".length())));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        Scenario[] schedule;
+        try {
+            schedule = parseMix(mix);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bad --mix " + mix + ": " + e.getMessage());
+            return;
+        }
+
+        // Connect everyone before the clock starts; the server assigns IDs as it accepts.
+        userIds = new AtomicIntegerArray(clientCount);
+        Client[] clients = new Client[clientCount];
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(i);
+            clients[i].connect();
+        }
+        for (Client client : clients) {
+            client.awaitId(10_000);
+        }
+        System.out.printf(Locale.ROOT, "Connected %d clients in %d ms (%d failed)%n", clientCount,
+                (System.nanoTime() - connectStart) / 1_000_000, CONNECTION_ERRORS.sum());
+
+        // Each sender thread owns an interleaved share of the action schedule.
+        long start = System.nanoTime();
+        measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+        long intervalNanos = (long) (1e9 / rate * senderCount);
+        Thread[] senders = new Thread[senderCount];
+        for (int s = 0; s < senderCount; s++) {
+            long first = start + (long) (1e9 / rate * s);
+            senders[s] = new Thread(() -> drive(clients, schedule, first, intervalNanos, end), "load-sender-" + s);
+            senders[s].start();
+        }
+
+        long nextReport = start + 5_000_000_000L;
+        while (System.nanoTime() < end) {
+            Thread.sleep(200);
+            if (System.nanoTime() >= nextReport) {
+                System.out.printf(Locale.ROOT, "%4ds  sent %d  delivered %d  group p99 %.2f ms  private p99 %.2f ms%n",
+                        (System.nanoTime() - start) / 1_000_000_000L, totalSent(), DELIVERED.sum(),
+                        millis(GROUP_LATENCY.percentileNanos(0.99)), millis(PRIVATE_LATENCY.percentileNanos(0.99)));
+                nextReport += 5_000_000_000L;
+            }
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(1000); // Let in-flight deliveries arrive before reading the counters.
+        report(durationSeconds);
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    // Turns "group=20,private=70,..." into a table of 100 slots that an action index walks
+    // through, so the mix is exact over every 100 actions rather than only on average.
+    private static Scenario[] parseMix(String mix) {
+        int[] weights = new int[Scenario.values().length];
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected scenario=weight, got " + part);
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("negative weight for " + pair[0]);
+            }
+            weights[Scenario.parse(pair[0]).ordinal()] += weight;
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("all weights are zero");
+        }
+        Scenario[] schedule = new Scenario[100];
+        int slot = 0;
+        double carried = 0;
+        for (Scenario scenario : Scenario.values()) {
+            carried += 100.0 * weights[scenario.ordinal()] / total;
+            while (slot < Math.round(carried)) {
+                schedule[slot++] = scenario;
+            }
+        }
+        // Spread the slots out so no scenario arrives in one long run.
+        for (int i = schedule.length - 1; i > 0; i--) {
+            int j = ThreadLocalRandom.current().nextInt(i + 1);
+            Scenario swap = schedule[i];
+            schedule[i] = schedule[j];
+            schedule[j] = swap;
+        }
+        return schedule;
+    }
+
+    // Runs one sender's actions at fixed due times. When the sender falls behind it does not
+    // skip ahead: the backlog is worked off and shows up as latency, as it would for users.
+    private static void drive(Client[] clients, Scenario[] schedule, long first, long intervalNanos, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int action = random.nextInt(schedule.length);
+        for (long due = first; due < end; due += intervalNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Client client = clients[random.nextInt(clients.length)];
+            Scenario scenario = schedule[action++ % schedule.length];
+            if (client.run(scenario, due, random)) {
+                if (due >= measureFrom) {
+                    SENT[scenario.ordinal()].increment();
+                }
+            } else {
+                SKIPPED.increment();
+            }
+        }
+    }
+
+    private static void report(int durationSeconds) {
+        long sent = totalSent();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Measured %d s: %d actions (%.1f/s), %d messages delivered (%.1f/s)%n",
+                durationSeconds, sent, (double) sent / durationSeconds, DELIVERED.sum(),
+                (double) DELIVERED.sum() / durationSeconds);
+        System.out.printf(Locale.ROOT, "Skipped %d actions (client busy or reconnecting), %d AI requests rejected, "
+                + "%d connection errors%n", SKIPPED.sum(), AI_REJECTED.sum(), CONNECTION_ERRORS.sum());
+        System.out.printf(Locale.ROOT, "Resumed sessions replayed %d missed or mailbox lines%n", REPLAYED.sum());
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-20s %8s %10s %10s %10s %10s %10s%n",
+                "latency (ms)", "sent", "count", "p50", "p99", "p999", "max");
+        row("group delivery", Scenario.GROUP, GROUP_LATENCY);
+        row("private delivery", Scenario.PRIVATE, PRIVATE_LATENCY);
+        row("reconnect", Scenario.RECONNECT, RECONNECT_LATENCY);
+        row("ai first line", Scenario.AI, AI_LATENCY);
+    }
+
+    private static void row(String name, Scenario scenario, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "%-20s %8d %10d %10.2f %10.2f %10.2f %10.2f%n",
+                name, SENT[scenario.ordinal()].sum(), histogram.count(),
+                millis(histogram.percentileNanos(0.5)), millis(histogram.percentileNanos(0.99)),
+                millis(histogram.percentileNanos(0.999)), millis(histogram.maxNanos()));
+    }
+
+    private static long totalSent() {
+        long total = 0;
+        for (LongAdder sent : SENT) {
+            total += sent.sum();
+        }
+        return total;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void record(LatencyHistogram histogram, long due) {
+        if (due >= measureFrom) {
+            histogram.recordSince(due);
+        }
+    }
+
+    // One simulated user. Senders call run(); a reader thread per connection handles input.
+    private static final class Client {
+        private final int slot;
+        // Replaced on every reconnect; the old session's reader sees its socket closed and exits.
+        private volatile Session session;
+        // Due time of this client's unanswered AI request, or 0.
+        private volatile long aiDue;
+        // Session to resume on reconnect, and the highest sequence number seen in it (frames only).
+        private volatile String sessionToken;
+        private volatile long lastSeq = -1;
+
+        Client(int slot) {
+            this.slot = slot;
+        }
+
+        void connect() {
+            connect(System.nanoTime());
+        }
+
+        private void connect(long due) {
+            aiDue = 0; // The server cancels AI requests of a closed connection.
+            Session next = new Session(this, due, sessionToken);
+            session = next;
+            try {
+                next.socket.connect(new InetSocketAddress(host, port), 10_000);
+                next.socket.setTcpNoDelay(true);
+                next.out = next.socket.getOutputStream();
+                Thread reader = new Thread(null, next::readLoop, "load-reader-" + slot, READER_STACK_SIZE);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                CONNECTION_ERRORS.increment();
+                next.close();
+            }
+        }
+
+        void awaitId(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (userIds.get(slot) == 0 && session.open && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        // Performs one scenario action; false if this client could not take it right now.
+        boolean run(Scenario scenario, long due, ThreadLocalRandom random) {
+            Session current = session;
+            if (!current.ready) {
+                return false;
+            }
+            switch (scenario) {
+                case GROUP:
+                    return current.send(message('g', due));
+                case PRIVATE:
+                    int target = userIds.get(random.nextInt(userIds.length()));
+                    if (target == 0 || target == current.userId) {
+                        return false;
+                    }
+                    return current.send("@" + target + " " + message('p', due));
+                case RECONNECT:
+                    current.close();
+                    connect(due);
+                    return true;
+                case AI:
+                    if (aiDue != 0) {
+                        return false; // The server runs one AI request per user at a time.
+                    }
+                    aiDue = due;
+                    if (!current.send("@ai " + AI_PROMPTS[random.nextInt(AI_PROMPTS.length)])) {
+                        aiDue = 0;
+                        return false;
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        void close() {
+            session.close();
+        }
+
+        private static String message(char kind, long due) {
+            StringBuilder text = new StringBuilder(Math.max(messageBytes, 32));
+            text.append(MARKER).append(kind).append(' ').append(due).append(' ');
+            while (text.length() < messageBytes) {
+                text.append('x');
+            }
+            return text.toString();
+        }
+    }
+
+    // One connection of a client.
+    private static final class Session {
+        private final Client client;
+        private final long due;
+        private final Socket socket = new Socket();
+        private OutputStream out;
+        private volatile boolean open = true;
+        // Set once the user ID has arrived and, with --protocol=frames, the switch is done.
+        private volatile boolean ready;
+        private volatile int userId;
+        private boolean framesOut;
+        private boolean inHistory;
+        // Session this connection takes over once it can send, or null for a fresh user.
+        private final String resumeToken;
+        private boolean resumeSent;
+
+        Session(Client client, long due, String resumeToken) {
+            this.client = client;
+            this.due = due;
+            this.resumeToken = resumeToken;
+        }
+
+        // Sends one line of user input in the negotiated protocol.
+        boolean send(String input) {
+            synchronized (socket) {
+                if (!open) {
+                    return false;
+                }
+                try {
+                    out.write(framesOut ? BinaryProtocol.encodeInput(input)
+                            : (input + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    return true;
+                } catch (IOException e) {
+                    close();
+                    return false;
+                }
+            }
+        }
+
+        void readLoop() {
+            try {
+                BinaryProtocol.Input in = new BinaryProtocol.Input(socket.getInputStream());
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals(BinaryProtocol.OFFER)) {
+                        if (frames) {
+                            send(BinaryProtocol.HELLO);
+                        }
+                    } else if (line.equals(BinaryProtocol.ACK)) {
+                        synchronized (socket) {
+                            framesOut = true;
+                        }
+                        if (userId != 0) {
+                            connected(); // The ID came first, still as text.
+                        }
+                        BinaryProtocol.Frame frame;
+                        while ((frame = in.readFrame()) != null) {
+                            onFrame(frame);
+                        }
+                        break;
+                    } else {
+                        onText(line);
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by a reconnect, the server or the end of the run.
+            }
+            if (open && client.session == this) {
+                CONNECTION_ERRORS.increment(); // The server hung up on us.
+            }
+            close();
+        }
+
+        private void onFrame(BinaryProtocol.Frame frame) {
+            if (frame.seq > client.lastSeq && client.session == this) {
+                client.lastSeq = frame.seq;
+            }
+            switch (frame.type) {
+                case BinaryProtocol.GROUP:
+                    if (frame.senderId != userId && !inHistory) {
+                        onMessage(frame.text);
+                    }
+                    break;
+                case BinaryProtocol.PRIVATE:
+                    if (inHistory) {
+                        if (resumeSent) {
+                            REPLAYED.increment(); // Offline mail, not a live delivery.
+                        }
+                    } else {
+                        onMessage(frame.text);
+                    }
+                    break;
+                case BinaryProtocol.AI:
+                    onAiReply();
+                    break;
+                case BinaryProtocol.TEXT:
+                    onText(frame.text);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // A line in text-protocol form: notices, history and, without frames, every message.
+        private void onText(String line) {
+            if (line.startsWith("Your User ID: ")) {
+                userId = Integer.parseInt(line.substring("Your User ID: ".length()).trim());
+                if (resumeSent) {
+                    userIds.set(client.slot, userId); // Ready once the missed lines are in.
+                    return;
+                }
+                if (resumeToken == null) {
+                    userIds.set(client.slot, userId); // Otherwise a temporary ID until the resume.
+                }
+                if (frames && !framesOut) {
+                    return; // Ready once the ACK arrives.
+                }
+                connected();
+            } else if (line.startsWith("Your Session: ")) {
+                client.sessionToken = line.substring("Your Session: ".length()).trim();
+            } else if (line.startsWith("Session expired")) {
+                userIds.set(client.slot, userId); // Carries on under the temporary ID.
+            } else if (line.startsWith("You are not in any rooms") || line.startsWith("Your rooms:")) {
+                resumed();
+            } else if (line.equals("--- Chat History ---") || line.equals("--- Missed Messages ---")
+                    || line.equals("--- Offline Messages ---")) {
+                inHistory = true;
+            } else if (line.equals("--------------------")) {
+                inHistory = false;
+            } else if (inHistory) {
+                if (resumeSent) {
+                    REPLAYED.increment();
+                }
+                return; // Replayed history is not a new delivery.
+            } else if (line.startsWith("AI: ")) {
+                onAiReply();
+            } else if (line.startsWith("The AI queue is full") || line.equals("AI request cancelled.")) {
+                AI_REJECTED.increment();
+                client.aiDue = 0;
+            } else if (!line.startsWith("You: ")) {
+                onMessage(line);
+            }
+        }
+
+        private void onMessage(String text) {
+            int at = text.indexOf(MARKER);
+            if (at < 0 || text.length() < at + MARKER.length() + 3) {
+                return;
+            }
+            char kind = text.charAt(at + MARKER.length());
+            int from = at + MARKER.length() + 2;
+            int to = text.indexOf(' ', from);
+            long sentDue;
+            try {
+                sentDue = Long.parseLong(to < 0 ? text.substring(from) : text.substring(from, to));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (sentDue >= measureFrom) {
+                DELIVERED.increment();
+            }
+            record(kind == 'g' ? GROUP_LATENCY : PRIVATE_LATENCY, sentDue);
+        }
+
+        private void onAiReply() {
+            long sentDue = client.aiDue;
+            if (sentDue != 0) {
+                client.aiDue = 0;
+                record(AI_LATENCY, sentDue);
+            }
+        }
+
+        // The connection can send. A reconnect first asks for its session back.
+        private void connected() {
+            if (resumeToken != null) {
+                resumeSent = true;
+                long seq = client.lastSeq;
+                send("\\resume " + resumeToken + (seq < 0 ? "" : " " + seq));
+                send("\\rooms"); // Answered after everything the resume sends.
+                return;
+            }
+            ready = true;
+            if (due != 0) {
+                record(RECONNECT_LATENCY, due);
+            }
+        }
+
+        // The answer to a resume is complete: missed lines or the latest history page, then mail.
+        private void resumed() {
+            if (resumeSent && !ready) {
+                ready = true;
+                record(RECONNECT_LATENCY, due);
+            }
+        }
+
+        void close() {
+            synchronized (socket) {
+                open = false;
+                ready = false;
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Background upkeep of the chat log's closed segments, on one thread so it never competes with
+// itself: compresses newly closed segments, drops segments past the retention limits and
+// rewrites compressed segments that are mostly cleared lines. Replaced files are deleted after
+// a grace period, since a reader may still be reading them.
+final class LogCompactor {
+    private static final long PASS_INTERVAL_MILLIS = 10_000;
+    private static final long RETIRED_GRACE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final SegmentedLog log;
+    private final Thread thread;
+
+    // Guarded by this.
+    private final ArrayDeque<LogSegment> closed = new ArrayDeque<>();
+    private boolean stopping;
+
+    // Compactor thread only: files of replaced segments and when they were replaced.
+    private final List<File> retiredFiles = new ArrayList<>();
+    private final List<Long> retiredAt = new ArrayList<>();
+
+    LogCompactor(SegmentedLog log) {
+        this.log = log;
+        this.thread = new Thread(this::run, "chat-log-compactor");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Queues a segment the writer has just closed.
+    synchronized void segmentClosed(LogSegment segment) {
+        closed.add(segment);
+        notifyAll();
+    }
+
+    // Stops after the current rewrite; uncompressed segments are picked up on the next start.
+    void stop() {
+        synchronized (this) {
+            stopping = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            LogSegment segment;
+            synchronized (this) {
+                if (closed.isEmpty() && !stopping) {
+                    try {
+                        wait(PASS_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopping) {
+                    break;
+                }
+                segment = closed.poll();
+            }
+            if (segment != null) {
+                if (rewrite(segment)) {
+                    Metrics.LOG_SEGMENTS_COMPRESSED.increment();
+                }
+                continue; // Compress everything queued before anything else.
+            }
+            for (LogSegment expired : log.expire(System.currentTimeMillis())) {
+                retire(expired);
+                Metrics.LOG_SEGMENTS_EXPIRED.increment();
+            }
+            for (LogSegment candidate : log.compactionCandidates()) {
+                if (rewrite(candidate)) {
+                    Metrics.LOG_SEGMENTS_COMPACTED.increment();
+                }
+            }
+            deleteRetired(false);
+        }
+        deleteRetired(true);
+    }
+
+    private boolean rewrite(LogSegment segment) {
+        long start = System.nanoTime();
+        try {
+            if (!log.rewrite(segment)) {
+                return false;
+            }
+        } catch (IOException e) {
+            System.err.println("Chat log: could not rewrite " + segment.name() + ": " + e.getMessage());
+            return false;
+        }
+        retire(segment);
+        Metrics.LOG_REWRITE.recordSince(start);
+        return true;
+    }
+
+    private void retire(LogSegment segment) {
+        retiredFiles.add(segment.dataFile);
+        retiredAt.add(System.nanoTime());
+        if (segment.compressed) {
+            retiredFiles.add(segment.indexFile);
+            retiredAt.add(System.nanoTime());
+        }
+    }
+
+    // Deletes retired files past their grace period, or all of them when stopping.
+    private void deleteRetired(boolean all) {
+        long now = System.nanoTime();
+        Iterator<Long> at = retiredAt.iterator();
+        for (Iterator<File> it = retiredFiles.iterator(); it.hasNext(); ) {
+            File file = it.next();
+            long retired = at.next();
+            if (all || now - retired >= RETIRED_GRACE_NANOS) {
+                file.delete();
+                it.remove();
+                at.remove();
+            }
+        }
+    }
+}
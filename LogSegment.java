@@ -0,0 +1,515 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// One segment of the chat log: a file of records shared by all users (see SegmentedLog). The
+// active segment is a plain append-only file "<id>-0.log". Once closed, the compactor rewrites
+// it as "<id>-<generation>.dz", independently deflated 64 KB blocks, plus a sidecar index
+// "<id>-<generation>.idx" with the block table and, per user, the offsets of that user's lines.
+// Offsets always refer to the uncompressed record stream. The index is written last, so a
+// compressed generation without one is an unfinished rewrite.
+//
+// Record layout, big-endian:
+//   int    body length
+//   int    CRC32C of the body
+//   byte   kind
+//   LINE:  int user ID, long seq, UTF-8 text
+//   GROUP: int recipient count n, n x (int user ID, long seq), UTF-8 text
+//   CLEAR: int user ID, long seq (the user's first sequence number after the clear)
+final class LogSegment {
+    static final byte LINE = 1;
+    static final byte GROUP = 2;
+    static final byte CLEAR = 3;
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int HEADER_LENGTH = 8;
+    private static final int MAX_BODY_LENGTH = 64 * 1024 * 1024;
+    private static final int INDEX_MAGIC = 0x43484c49; // "CHLI"
+    private static final int INDEX_VERSION = 1;
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)-(\\d+)\\.(log|dz|idx)");
+
+    final long id;
+    final int generation;
+    final boolean compressed;
+    final File dataFile;
+    final File indexFile;
+    final long createdMillis;
+    // Set when the segment is closed; retention goes by it.
+    volatile long closedMillis;
+    // Length of the record stream. Grows while the segment is active; readers only look at
+    // offsets published through SegmentedLog, which are always below it.
+    volatile long dataLength;
+    // Compressed segments: file offset of every block, then the file length.
+    private long[] blockOffsets;
+    // Users with lines here and counts of their index entries; guarded by the SegmentedLog.
+    final IntSet users = new IntSet();
+    int entries;
+    int deadEntries;
+
+    private LogSegment(File directory, long id, int generation, boolean compressed, long createdMillis) {
+        this.id = id;
+        this.generation = generation;
+        this.compressed = compressed;
+        this.dataFile = new File(directory, baseName(id, generation) + (compressed ? ".dz" : ".log"));
+        this.indexFile = new File(directory, baseName(id, generation) + ".idx");
+        this.createdMillis = createdMillis;
+    }
+
+    // A new plain segment for appending.
+    static LogSegment create(File directory, long id) {
+        return new LogSegment(directory, id, 0, false, System.currentTimeMillis());
+    }
+
+    // A plain segment left by an earlier run; its valid length is found by scanning it.
+    static LogSegment existing(File directory, long id) {
+        LogSegment segment = new LogSegment(directory, id, 0, false, 0);
+        segment.dataLength = segment.dataFile.length();
+        segment.closedMillis = segment.dataFile.lastModified();
+        return segment;
+    }
+
+    // The next compressed generation of this segment, to be filled by a Writer.
+    LogSegment nextGeneration() {
+        LogSegment next = new LogSegment(dataFile.getParentFile(), id, generation + 1, true, createdMillis);
+        next.closedMillis = closedMillis;
+        return next;
+    }
+
+    long fileLength() {
+        return compressed ? blockOffsets[blockOffsets.length - 1] + indexFile.length() : dataLength;
+    }
+
+    String name() {
+        return dataFile.getName();
+    }
+
+    private static String baseName(long id, int generation) {
+        return String.format("%012d-%d", id, generation);
+    }
+
+    // Parses a segment file name into {id, generation, kind}, kind 0 = .log, 1 = .dz, 2 = .idx;
+    // null for any other file.
+    static long[] parseName(String name) {
+        Matcher m = FILE_NAME.matcher(name);
+        if (!m.matches()) {
+            return null;
+        }
+        long kind = m.group(3).equals("log") ? 0 : m.group(3).equals("dz") ? 1 : 2;
+        return new long[] {Long.parseLong(m.group(1)), Long.parseLong(m.group(2)), kind};
+    }
+
+    // Record bodies.
+
+    static byte[] line(int userId, long seq, byte[] text) {
+        ByteBuffer body = ByteBuffer.allocate(13 + text.length);
+        body.put(LINE).putInt(userId).putLong(seq).put(text);
+        return body.array();
+    }
+
+    static byte[] group(int[] userIds, long[] seqs, int count, byte[] text) {
+        ByteBuffer body = ByteBuffer.allocate(5 + 12 * count + text.length);
+        body.put(GROUP).putInt(count);
+        for (int i = 0; i < count; i++) {
+            body.putInt(userIds[i]).putLong(seqs[i]);
+        }
+        body.put(text);
+        return body.array();
+    }
+
+    static byte[] clear(int userId, long seq) {
+        ByteBuffer body = ByteBuffer.allocate(13);
+        body.put(CLEAR).putInt(userId).putLong(seq);
+        return body.array();
+    }
+
+    // Appends a whole record for the body; returns its length.
+    static int writeRecord(ByteArrayOutputStream out, byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH).putInt(body.length).putInt((int) crc.getValue()).array();
+        out.write(header, 0, HEADER_LENGTH);
+        out.write(body, 0, body.length);
+        return HEADER_LENGTH + body.length;
+    }
+
+    // A decoded record. For LINE and CLEAR records userIds and seqs have one element.
+    static final class Record {
+        final long offset;
+        final int length;
+        final byte kind;
+        final int[] userIds;
+        final long[] seqs;
+        private final byte[] body;
+        private final int textStart;
+
+        private Record(long offset, byte[] body) throws IOException {
+            this.offset = offset;
+            this.length = HEADER_LENGTH + body.length;
+            this.body = body;
+            this.kind = body[0];
+            if (kind < LINE || kind > CLEAR || body.length < (kind == GROUP ? 5 : 13)) {
+                throw new IOException("Bad record at offset " + offset);
+            }
+            ByteBuffer in = ByteBuffer.wrap(body, 1, body.length - 1);
+            int count = kind == GROUP ? in.getInt() : 1;
+            if (kind == GROUP && (count < 0 || count > (body.length - 5) / 12)) {
+                throw new IOException("Bad group record at offset " + offset);
+            }
+            userIds = new int[count];
+            seqs = new long[count];
+            for (int i = 0; i < count; i++) {
+                userIds[i] = in.getInt();
+                seqs[i] = in.getLong();
+            }
+            textStart = in.position();
+        }
+
+        long end() {
+            return offset + length;
+        }
+
+        byte[] text() {
+            return Arrays.copyOfRange(body, textStart, body.length);
+        }
+
+        String textString() {
+            return new String(body, textStart, body.length - textStart, StandardCharsets.UTF_8);
+        }
+
+        // The record as stored, to copy it unchanged.
+        byte[] body() {
+            return body;
+        }
+    }
+
+    Reader openReader() throws IOException {
+        return new Reader();
+    }
+
+    // Reads records by offset. Keeps one block in memory, so a page of nearby lines, or a scan,
+    // reads and inflates each block once. Not thread-safe; open one per read.
+    final class Reader implements Closeable {
+        private final FileChannel channel;
+        private FileChannel index;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private long blockIndex = -1;
+        private int blockLength;
+        private Inflater inflater;
+        private byte[] compressedBlock;
+
+        private Reader() throws IOException {
+            channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        }
+
+        Record read(long offset) throws IOException {
+            byte[] header = new byte[HEADER_LENGTH];
+            readFully(offset, header);
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            int length = fields.getInt();
+            int crc = fields.getInt();
+            if (length <= 0 || length > MAX_BODY_LENGTH) {
+                throw new IOException("Bad record length at offset " + offset + " in " + name());
+            }
+            byte[] body = new byte[length];
+            readFully(offset + HEADER_LENGTH, body);
+            CRC32C check = new CRC32C();
+            check.update(body);
+            if ((int) check.getValue() != crc) {
+                throw new IOException("Checksum mismatch at offset " + offset + " in " + name());
+            }
+            return new Record(offset, body);
+        }
+
+        // Offsets of count lines of one run, starting at entry first; see writeIndex.
+        int[] offsets(long position, int first, int count) throws IOException {
+            if (index == null) {
+                index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(4 * count);
+            long at = position + 4L * first;
+            while (bytes.hasRemaining()) {
+                if (index.read(bytes, at + bytes.position()) < 0) {
+                    throw new EOFException("Index of " + name() + " is truncated");
+                }
+            }
+            bytes.flip();
+            int[] offsets = new int[count];
+            bytes.asIntBuffer().get(offsets);
+            return offsets;
+        }
+
+        private void readFully(long offset, byte[] dst) throws IOException {
+            int done = 0;
+            while (done < dst.length) {
+                long position = offset + done;
+                long wanted = position / BLOCK_SIZE;
+                int start = (int) (position - wanted * BLOCK_SIZE);
+                if (wanted != blockIndex || start >= blockLength) {
+                    load(wanted);
+                }
+                if (start >= blockLength) {
+                    throw new EOFException("Record past the end of " + name());
+                }
+                int n = Math.min(dst.length - done, blockLength - start);
+                System.arraycopy(block, start, dst, done, n);
+                done += n;
+            }
+        }
+
+        private void load(long wanted) throws IOException {
+            blockIndex = wanted;
+            blockLength = 0;
+            if (!compressed) {
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                long position = wanted * BLOCK_SIZE;
+                int n;
+                while (buffer.hasRemaining() && (n = channel.read(buffer, position + buffer.position())) > 0) {
+                    // Keep reading until the block is full or the file ends.
+                }
+                blockLength = buffer.position();
+                return;
+            }
+            if (wanted >= blockOffsets.length - 1) {
+                return;
+            }
+            int compressedLength = (int) (blockOffsets[(int) wanted + 1] - blockOffsets[(int) wanted]);
+            if (compressedBlock == null || compressedBlock.length < compressedLength) {
+                compressedBlock = new byte[compressedLength];
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(compressedBlock, 0, compressedLength);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, blockOffsets[(int) wanted] + buffer.position()) < 0) {
+                    throw new EOFException(name() + " is truncated");
+                }
+            }
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(compressedBlock, 0, compressedLength);
+            try {
+                while (blockLength < BLOCK_SIZE && !inflater.finished()) {
+                    int n = inflater.inflate(block, blockLength, BLOCK_SIZE - blockLength);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    blockLength += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + wanted + " in " + name(), e);
+            }
+        }
+
+        public void close() throws IOException {
+            if (inflater != null) {
+                inflater.end();
+            }
+            try {
+                channel.close();
+            } finally {
+                if (index != null) {
+                    index.close();
+                }
+            }
+        }
+    }
+
+    Writer openWriter() throws IOException {
+        return new Writer();
+    }
+
+    // Fills a compressed segment: records are gathered into blocks and every full block is
+    // deflated on its own, so a reader can start at any block.
+    final class Writer implements Closeable {
+        private final FileOutputStream file;
+        private final BufferedOutputStream out;
+        private final Deflater deflater = new Deflater();
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] compressedBlock = new byte[BLOCK_SIZE + BLOCK_SIZE / 8 + 64];
+        private int blockLength;
+        private final List<Long> offsets = new ArrayList<>();
+        private long filePosition;
+        private long length;
+
+        private Writer() throws IOException {
+            file = new FileOutputStream(dataFile);
+            out = new BufferedOutputStream(file, BLOCK_SIZE);
+        }
+
+        // Writes one record with the given body; returns its offset.
+        long write(byte[] body) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_LENGTH + body.length);
+            writeRecord(record, body);
+            byte[] bytes = record.toByteArray();
+            long offset = length;
+            int done = 0;
+            while (done < bytes.length) {
+                int n = Math.min(bytes.length - done, BLOCK_SIZE - blockLength);
+                System.arraycopy(bytes, done, block, blockLength, n);
+                blockLength += n;
+                done += n;
+                if (blockLength == BLOCK_SIZE) {
+                    flushBlock();
+                }
+            }
+            length += bytes.length;
+            return offset;
+        }
+
+        private void flushBlock() throws IOException {
+            offsets.add(filePosition);
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressedBlock);
+                out.write(compressedBlock, 0, n);
+                filePosition += n;
+            }
+            blockLength = 0;
+        }
+
+        // Writes the last block and syncs the file.
+        void finish() throws IOException {
+            if (blockLength > 0) {
+                flushBlock();
+            }
+            out.flush();
+            file.getFD().sync();
+            long[] table = new long[offsets.size() + 1];
+            for (int i = 0; i < offsets.size(); i++) {
+                table[i] = offsets.get(i);
+            }
+            table[offsets.size()] = filePosition;
+            blockOffsets = table;
+            dataLength = length;
+        }
+
+        public void close() throws IOException {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    // One user's lines in an index: a run of consecutive sequence numbers.
+    static final class IndexRun {
+        final int userId;
+        final long firstSeq;
+        int count;
+        // Where the run's offsets start in the index file; set by writeIndex and readIndex.
+        long position;
+        int[] offsets;
+
+        IndexRun(int userId, long firstSeq, int count, int[] offsets) {
+            this.userId = userId;
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.offsets = offsets;
+        }
+    }
+
+    // Writes the index of a compressed segment whose Writer has finished:
+    //   int magic, int version, long created, long closed, long data length,
+    //   int block count n, (n + 1) x long block offset,
+    //   int run count, per run: int user ID, long first seq, int count,
+    //   int clear count, per clear: int user ID, long seq,
+    //   then the offsets of every run in order, one int each.
+    // The file appears under its final name only once complete.
+    void writeIndex(List<IndexRun> runs, List<long[]> clears) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BLOCK_SIZE))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(createdMillis);
+            out.writeLong(closedMillis);
+            out.writeLong(dataLength);
+            out.writeInt(blockOffsets.length - 1);
+            for (long offset : blockOffsets) {
+                out.writeLong(offset);
+            }
+            out.writeInt(runs.size());
+            for (IndexRun run : runs) {
+                out.writeInt(run.userId);
+                out.writeLong(run.firstSeq);
+                out.writeInt(run.count);
+            }
+            out.writeInt(clears.size());
+            for (long[] clear : clears) {
+                out.writeInt((int) clear[0]);
+                out.writeLong(clear[1]);
+            }
+            long position = out.size();
+            for (IndexRun run : runs) {
+                run.position = position;
+                for (int i = 0; i < run.count; i++) {
+                    out.writeInt(run.offsets[i]);
+                }
+                position += 4L * run.count;
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Opens a compressed segment from its index. Fills runs (offsets left on disk) and clears.
+    static LogSegment readIndex(File directory, long id, int generation, List<IndexRun> runs, List<long[]> clears)
+            throws IOException {
+        File indexFile = new File(directory, baseName(id, generation) + ".idx");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BLOCK_SIZE))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Not a segment index: " + indexFile);
+            }
+            LogSegment segment = new LogSegment(directory, id, generation, true, in.readLong());
+            segment.closedMillis = in.readLong();
+            segment.dataLength = in.readLong();
+            long[] table = new long[in.readInt() + 1];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = in.readLong();
+            }
+            segment.blockOffsets = table;
+            int runCount = in.readInt();
+            long position = 36 + 8L * table.length + 4 + 16L * runCount + 4;
+            List<IndexRun> read = new ArrayList<>(runCount);
+            for (int i = 0; i < runCount; i++) {
+                IndexRun run = new IndexRun(in.readInt(), in.readLong(), in.readInt(), null);
+                read.add(run);
+            }
+            int clearCount = in.readInt();
+            position += 12L * clearCount;
+            for (int i = 0; i < clearCount; i++) {
+                clears.add(new long[] {in.readInt(), in.readLong()});
+            }
+            for (IndexRun run : read) {
+                run.position = position;
+                position += 4L * run.count;
+            }
+            runs.addAll(read);
+            return segment;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Offline mailboxes: private messages for users who are not connected, kept until the user
+// next connects and then handed over in one batch. All mailboxes share one append-only file,
+// mailbox.log in the log directory, framed like log segment records. In memory only non-empty
+// mailboxes have an entry, holding the file offsets of their messages, so registered but idle
+// users cost nothing. Every mailbox holds at most maxMessages, at most senderQuota of them from
+// any one sender, and the file is capped at maxBytes.
+//
+// Records: DEPOSIT (byte kind, int recipient, int sender, UTF-8 encrypted log line) and TAKEN
+// (byte kind, int recipient, int count), which drops the recipient's oldest count messages.
+// Deposits are synced before the sender is told. Handing mail over takes two steps: take()
+// returns the messages and keeps them, and remove() drops them once the caller has synced them
+// to the chat log. A crash in between hands them over again instead of losing them, so a TAKEN
+// record is not synced. Once most of the file is taken messages it is rewritten with the
+// waiting ones, and once every mailbox is empty it is truncated.
+final class Mailbox {
+    static final String FILE_NAME = "mailbox.log";
+
+    private static final byte DEPOSIT = 1;
+    private static final byte TAKEN = 2;
+    private static final int HEADER_LENGTH = 8;
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+
+    enum Result { STORED, FULL, SENDER_QUOTA, STORE_FULL }
+
+    // A message taken from a mailbox: the recipient's log line for it, still encrypted.
+    static final class Mail {
+        final int senderId;
+        final String line;
+
+        Mail(int senderId, String line) {
+            this.senderId = senderId;
+            this.line = line;
+        }
+    }
+
+    // One non-empty mailbox.
+    private static final class Box {
+        long[] offsets = new long[4];
+        int[] senders = new int[4];
+        int[] lengths = new int[4];
+        int count;
+        long bytes;
+        // Set between take() and remove(), so only one thread hands the mailbox over.
+        boolean taking;
+
+        void add(long offset, int senderId, int length) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                senders = Arrays.copyOf(senders, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = offset;
+            senders[count] = senderId;
+            lengths[count] = length;
+            count++;
+            bytes += length;
+        }
+
+        // Drops the oldest n messages and returns their record bytes.
+        long removeFirst(int n) {
+            n = Math.min(n, count);
+            long removed = 0;
+            for (int i = 0; i < n; i++) {
+                removed += lengths[i];
+            }
+            count -= n;
+            System.arraycopy(offsets, n, offsets, 0, count);
+            System.arraycopy(senders, n, senders, 0, count);
+            System.arraycopy(lengths, n, lengths, 0, count);
+            bytes -= removed;
+            return removed;
+        }
+
+        int countFrom(int senderId) {
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (senders[i] == senderId) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+
+    private final File file;
+    private final int maxMessages;
+    private final int senderQuota;
+    private final long maxBytes;
+
+    // Guarded by this.
+    private final Map<Integer, Box> boxes = new HashMap<>();
+    private FileChannel channel;
+    private long length;
+    private long liveBytes;
+    private long messageCount;
+
+    private Mailbox(File directory, int maxMessages, int senderQuota, long maxBytes) {
+        this.file = new File(directory, FILE_NAME);
+        this.maxMessages = maxMessages;
+        this.senderQuota = senderQuota;
+        this.maxBytes = maxBytes;
+    }
+
+    // Opens the mailboxes kept in directory, cutting off a torn record left by a crash.
+    static Mailbox open(File directory, int maxMessages, int senderQuota, long maxBytes) throws IOException {
+        Mailbox mailbox = new Mailbox(directory, maxMessages, senderQuota, maxBytes);
+        directory.mkdirs();
+        mailbox.channel = FileChannel.open(mailbox.file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (mailbox) {
+            mailbox.load();
+        }
+        return mailbox;
+    }
+
+    // Stores a message for an offline recipient unless that would break a limit.
+    synchronized Result deposit(int recipientId, int senderId, String line) throws IOException {
+        Box box = boxes.get(recipientId);
+        if (box != null && box.count >= maxMessages) {
+            return Result.FULL;
+        }
+        if (box != null && box.countFrom(senderId) >= senderQuota) {
+            return Result.SENDER_QUOTA;
+        }
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] record = record(ByteBuffer.allocate(9 + text.length)
+                .put(DEPOSIT).putInt(recipientId).putInt(senderId).put(text).array());
+        if (length + record.length > maxBytes) {
+            compact();
+            if (length + record.length > maxBytes) {
+                return Result.STORE_FULL;
+            }
+        }
+        long offset = length;
+        append(record);
+        channel.force(false);
+        if (box == null) {
+            box = new Box();
+            boxes.put(recipientId, box);
+        }
+        box.add(offset, senderId, record.length);
+        liveBytes += record.length;
+        messageCount++;
+        return Result.STORED;
+    }
+
+    // Returns the user's waiting messages, oldest first, and claims them until remove() or
+    // release(). Empty if there are none or another thread is handing them over; that thread
+    // takes again after its remove(), so messages deposited meanwhile are not left behind. A
+    // map lookup and nothing else when the mailbox is empty.
+    synchronized List<Mail> take(int recipientId) throws IOException {
+        Box box = boxes.get(recipientId);
+        if (box == null || box.taking) {
+            return Collections.emptyList();
+        }
+        List<Mail> mail = new ArrayList<>(box.count);
+        for (int i = 0; i < box.count; i++) {
+            ByteBuffer body = read(box.offsets[i]);
+            mail.add(new Mail(box.senders[i], new String(body.array(), 9, body.limit() - 9, StandardCharsets.UTF_8)));
+        }
+        box.taking = true;
+        return mail;
+    }
+
+    // Drops the count messages the last take() returned, once they are safe in the chat log.
+    synchronized void remove(int recipientId, int count) throws IOException {
+        Box box = boxes.get(recipientId);
+        if (box == null) {
+            return;
+        }
+        box.taking = false;
+        int removed = Math.min(count, box.count);
+        liveBytes -= box.removeFirst(removed);
+        messageCount -= removed;
+        if (box.count == 0) {
+            boxes.remove(recipientId);
+        }
+        append(record(ByteBuffer.allocate(9).put(TAKEN).putInt(recipientId).putInt(removed).array()));
+        if (boxes.isEmpty() || length - liveBytes >= Math.max(COMPACT_MIN_BYTES, liveBytes)) {
+            compact();
+        }
+    }
+
+    // Gives up the claim of the last take() and keeps the messages, e.g. when handing them
+    // over failed.
+    synchronized void release(int recipientId) {
+        Box box = boxes.get(recipientId);
+        if (box != null) {
+            box.taking = false;
+        }
+    }
+
+    // Highest recipient or sender ID in [from, to) with a message waiting, or -1.
+    synchronized int maxUserId(int from, int to) {
+        int max = -1;
+        for (Map.Entry<Integer, Box> entry : boxes.entrySet()) {
+            max = Math.max(max, inRange(entry.getKey(), from, to));
+            Box box = entry.getValue();
+            for (int i = 0; i < box.count; i++) {
+                max = Math.max(max, inRange(box.senders[i], from, to));
+            }
+        }
+        return max;
+    }
+
+    private static int inRange(int userId, int from, int to) {
+        return userId >= from && userId < to ? userId : -1;
+    }
+
+    synchronized long messageCount() {
+        return messageCount;
+    }
+
+    synchronized long fileBytes() {
+        return length;
+    }
+
+    // Caller holds the lock.
+    private void append(byte[] record) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(record);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, length + bytes.position());
+        }
+        length += record.length;
+    }
+
+    private static byte[] record(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + body.length);
+        LogSegment.writeRecord(out, body);
+        return out.toByteArray();
+    }
+
+    // Reads the body of the record at offset, checking its CRC.
+    private ByteBuffer read(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, offset);
+        int bodyLength = header.getInt(0);
+        if (bodyLength < 5 || offset + HEADER_LENGTH + bodyLength > length) {
+            throw new IOException("Bad mailbox record at offset " + offset);
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        readFully(body, offset + HEADER_LENGTH);
+        CRC32C crc = new CRC32C();
+        crc.update(body.array());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            throw new IOException("Checksum mismatch in mailbox record at offset " + offset);
+        }
+        body.flip();
+        return body;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Mailbox record past the end of " + file);
+            }
+        }
+    }
+
+    // Replays the file into the in-memory mailboxes.
+    private void load() throws IOException {
+        length = channel.size();
+        long offset = 0;
+        while (offset < length) {
+            ByteBuffer body;
+            try {
+                body = read(offset);
+            } catch (IOException e) {
+                break;
+            }
+            int recordLength = HEADER_LENGTH + body.limit();
+            byte kind = body.get();
+            int recipientId = body.getInt();
+            if (kind == DEPOSIT && body.limit() >= 9) {
+                Box box = boxes.computeIfAbsent(recipientId, id -> new Box());
+                box.add(offset, body.getInt(), recordLength);
+                liveBytes += recordLength;
+                messageCount++;
+            } else if (kind == TAKEN && body.limit() >= 9) {
+                Box box = boxes.get(recipientId);
+                if (box != null) {
+                    int count = Math.min(body.getInt(), box.count);
+                    liveBytes -= box.removeFirst(count);
+                    messageCount -= count;
+                    if (box.count == 0) {
+                        boxes.remove(recipientId);
+                    }
+                }
+            }
+            offset += recordLength;
+        }
+        if (offset < length) {
+            System.out.println("Mailbox: cut " + (length - offset) + " bytes of torn records from " + file);
+            channel.truncate(offset);
+            channel.force(false);
+            length = offset;
+        }
+    }
+
+    // Rewrites the file with only the waiting messages; an empty store is just truncated.
+    private void compact() throws IOException {
+        if (boxes.isEmpty()) {
+            channel.truncate(0);
+            channel.force(false);
+            length = 0;
+            return;
+        }
+        if (length == liveBytes) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        // New offsets are applied only once the new file is in place.
+        Map<Box, long[]> moved = new HashMap<>();
+        long written = 0;
+        // The new channel follows the file through the rename; until then the old one stays.
+        FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            for (Box box : boxes.values()) {
+                long[] offsets = new long[box.offsets.length];
+                for (int i = 0; i < box.count; i++) {
+                    byte[] record = record(read(box.offsets[i]).array());
+                    ByteBuffer bytes = ByteBuffer.wrap(record);
+                    while (bytes.hasRemaining()) {
+                        out.write(bytes, written + bytes.position());
+                    }
+                    offsets[i] = written;
+                    written += record.length;
+                }
+                moved.put(box, offsets);
+            }
+            out.force(false);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        FileChannel old = channel;
+        channel = out;
+        for (Map.Entry<Box, long[]> entry : moved.entrySet()) {
+            entry.getKey().offsets = entry.getValue();
+        }
+        length = written;
+        try {
+            old.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
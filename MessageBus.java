@@ -0,0 +1,46 @@
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+// Carries messages between the nodes of a cluster (see ChatCluster). Messages are complete
+// BinaryProtocol frames; the bus only routes them. Selected with --bus when the server starts.
+public interface MessageBus {
+    // Callbacks from the bus. They run on bus threads, one per sending node, in arrival order.
+    interface Handler {
+        // Frames to send ahead of anything else on a new link to the node. Called with the
+        // link locked, so nothing sent concurrently can overtake them.
+        List<byte[]> onConnected(int node);
+
+        void onMessage(int node, BinaryProtocol.Frame frame);
+
+        // The node's link went down; whatever it announced earlier is no longer true.
+        void onNodeDown(int node);
+    }
+
+    String name();
+
+    // Binds this node's address and starts linking up with the other nodes.
+    void start(Handler handler) throws java.io.IOException;
+
+    // Sends a frame to one node. Dropped (and counted) while that node is unreachable.
+    void send(int node, byte[] frame);
+
+    // Sends a frame once to every other node.
+    void broadcast(byte[] frame);
+
+    // Frames dropped because their node was unreachable or too far behind.
+    long dropped();
+
+    void close();
+
+    static MessageBus create(String name, int nodeId, Map<Integer, InetSocketAddress> nodes) {
+        switch (name) {
+            case "direct":
+                return new TcpMessageBus(nodeId, nodes);
+            case "batched":
+                return new BatchingMessageBus(nodeId, nodes);
+            default:
+                throw new IllegalArgumentException("Unknown bus: " + name + " (expected direct or batched)");
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+// Server-wide instrumentation. Hot paths record into the static histograms and counters below,
+// which costs a System.nanoTime() pair and a few atomic adds and allocates nothing. Everything
+// else is computed when the metrics are read: over JMX (chat:type=Metrics) or as text from
+// http://127.0.0.1:<port>/metrics when the server runs with --metrics-port.
+public final class Metrics {
+    private static final List<Metric> METRICS = new ArrayList<>();
+
+    public static final LatencyHistogram BROADCAST = histogram("broadcast", "Group message fan-out to every client");
+    public static final LatencyHistogram ROOM_MESSAGE = histogram("room_message", "Room message fan-out to its members");
+    public static final LatencyHistogram PRIVATE_MESSAGE = histogram("private_message", "Private message delivery");
+    public static final LatencyHistogram LOG_APPEND = histogram("log_append", "Handing a log line to the log writer");
+    public static final LatencyHistogram LOG_BATCH = histogram("log_batch", "Log writer batch write");
+    public static final LatencyHistogram LOG_FSYNC = histogram("log_fsync", "Log writer fsync of the active segment");
+    public static final LatencyHistogram LOG_REWRITE = histogram("log_rewrite", "Compressing or compacting one log segment");
+    public static final LatencyHistogram ENCRYPT = histogram("encrypt", "Log line encryption");
+    public static final LatencyHistogram DECRYPT = histogram("decrypt", "Log line decryption");
+    public static final LatencyHistogram HISTORY_PAGE = histogram("history_page", "Reading and sending one history page");
+    public static final LatencyHistogram AI_REPLY = histogram("ai_reply", "AI request from submission to complete reply");
+    public static final LatencyHistogram SEARCH = histogram("search", "Ranking and sending one page of search hits");
+
+    public static final LongAdder BROADCAST_RECIPIENTS = counter("broadcast_recipients", "Group message copies queued");
+    public static final LongAdder LOG_RECORDS = counter("log_records", "Records written by the log writer");
+    public static final LongAdder LOG_SEGMENTS_COMPRESSED = counter("log_segments_compressed", "Closed log segments compressed");
+    public static final LongAdder LOG_SEGMENTS_COMPACTED = counter("log_segments_compacted", "Log segments rewritten without cleared lines");
+    public static final LongAdder LOG_SEGMENTS_EXPIRED = counter("log_segments_expired", "Log segments dropped by the retention policy");
+    public static final LongAdder OUTBOUND_DROPPED = counter("outbound_dropped", "Messages dropped for slow clients");
+    public static final LongAdder SLOW_DISCONNECTS = counter("slow_disconnects", "Clients disconnected for reading too slowly");
+    public static final LongAdder NIO_READ_PAUSES = counter("nio_read_pauses", "Connections not read until their queued input ran");
+    public static final LongAdder AI_REQUESTS = counter("ai_requests", "AI requests received");
+    public static final LongAdder AI_FAILURES = counter("ai_failures", "AI requests rejected, failed or cancelled");
+    public static final LongAdder MAILBOX_STORED = counter("mailbox_stored", "Private messages kept for offline users");
+    public static final LongAdder MAILBOX_DELIVERED = counter("mailbox_delivered", "Offline messages handed over on connect");
+    public static final LongAdder MAILBOX_REJECTED = counter("mailbox_rejected", "Offline messages refused by a mailbox limit");
+    public static final LongAdder SEARCH_INDEXED = counter("search_indexed", "Log lines added to the search index");
+
+    private Metrics() {
+    }
+
+    // Registers a value read on demand, such as a queue length.
+    public static void gauge(String name, String help, LongSupplier value) {
+        register(new Metric(name, help, "gauge", value, null));
+    }
+
+    // Registers a monotonically increasing count kept elsewhere.
+    public static void counter(String name, String help, LongSupplier value) {
+        register(new Metric(name + "_total", help, "counter", value, null));
+    }
+
+    // Writes every metric in the Prometheus text format. Latencies are in seconds.
+    public static String text() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : snapshot()) {
+            String name = "chat_" + metric.name;
+            out.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+            if (metric.histogram == null) {
+                out.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+                out.append(name).append(' ').append(metric.value.getAsLong()).append('\n');
+                continue;
+            }
+            LatencyHistogram histogram = metric.histogram;
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (String quantile : new String[]{"0.5", "0.99", "0.999"}) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.percentileNanos(Double.parseDouble(quantile)))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.sumNanos())).append('\n');
+            out.append(name).append("_count ").append(histogram.count()).append('\n');
+            out.append(name).append("_max ").append(seconds(histogram.maxNanos())).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Registers the chat:type=Metrics MBean with the platform MBean server.
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Serves text() on the loopback interface only.
+    public static void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics at http://127.0.0.1:" + port + "/metrics");
+    }
+
+    private static LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        register(new Metric(name + "_seconds", help, "summary", null, histogram));
+        return histogram;
+    }
+
+    private static LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        counter(name, help, adder::sum);
+        return adder;
+    }
+
+    private static void register(Metric metric) {
+        synchronized (METRICS) {
+            METRICS.add(metric);
+        }
+    }
+
+    private static List<Metric> snapshot() {
+        synchronized (METRICS) {
+            return new ArrayList<>(METRICS);
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static class Metric {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+        final LatencyHistogram histogram;
+
+        Metric(String name, String help, String type, LongSupplier value, LatencyHistogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    // Read-only JMX view. Counters and gauges appear under their own names; each histogram
+    // as <name>_count and <name>_p50/_p99/_p999/_max in microseconds.
+    private static class MetricsMBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Metric metric : snapshot()) {
+                if (metric.histogram == null) {
+                    if (metric.name.equals(attribute)) {
+                        return metric.value.getAsLong();
+                    }
+                    continue;
+                }
+                String base = metric.name.substring(0, metric.name.length() - "_seconds".length());
+                if (!attribute.startsWith(base + "_")) {
+                    continue;
+                }
+                switch (attribute.substring(base.length() + 1)) {
+                    case "count":
+                        return metric.histogram.count();
+                    case "p50_us":
+                        return metric.histogram.percentileNanos(0.5) / 1000.0;
+                    case "p99_us":
+                        return metric.histogram.percentileNanos(0.99) / 1000.0;
+                    case "p999_us":
+                        return metric.histogram.percentileNanos(0.999) / 1000.0;
+                    case "max_us":
+                        return metric.histogram.maxNanos() / 1000.0;
+                    default:
+                        break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the JMX contract allows.
+                }
+            }
+            return list;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Metric metric : snapshot()) {
+                if (metric.histogram == null) {
+                    attributes.add(new MBeanAttributeInfo(metric.name, "long", metric.help, true, false, false));
+                    continue;
+                }
+                String base = metric.name.substring(0, metric.name.length() - "_seconds".length());
+                attributes.add(new MBeanAttributeInfo(base + "_count", "long", metric.help, true, false, false));
+                for (String suffix : new String[]{"_p50_us", "_p99_us", "_p999_us", "_max_us"}) {
+                    attributes.add(new MBeanAttributeInfo(base + suffix, "double", metric.help, true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking reactor engine. A few selector threads own every socket; complete input lines
+// (or frames, see BinaryProtocol) are handed to a shared worker pool, one task at a time per
+// connection, so an idle user costs a channel and a few small objects rather than a thread and
+// its stack. Output is queued per connection and written only by the reactor, so senders never
+// touch a socket.
+//
+// The worker pool is fixed, or one virtual thread per task with nio-virtual. Its queue holds at
+// most one task per connection; a connection with MAX_PENDING_TASKS input tasks waiting is not
+// read until half of them have run, so a slow disk or a flood of input pushes back on the
+// clients instead of piling up threads or memory in the server.
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int WRITE_BATCH_SIZE = 64;
+    private static final int MAX_PENDING_TASKS = 64;
+
+    private final String name;
+    private final Reactor[] reactors;
+    // Handlers may block (disk, AI calls), so they never run on a reactor thread.
+    private final ExecutorService workers;
+
+    public NioConnectionEngine(String name, int reactorCount, ExecutorService workers) {
+        this.name = name;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        this.workers = workers;
+    }
+
+    // A fixed pool of platform threads. Handlers wait on disk and on their own clients, so it
+    // wants more threads than cores, but never one per connection.
+    static ExecutorService workerPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "nio-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // One virtual thread per task, or null when the running JVM has none (before Java 21).
+    static ExecutorService virtualWorkers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void serve(int port) throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), ChatServer.ACCEPT_BACKLOG);
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Reactor reactor = reactors[next];
+                next = (next + 1) % reactors.length;
+                reactor.execute(() -> reactor.open(channel));
+            }
+        }
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this reactor; leftovers are copied into the connection.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Runs a task on the reactor thread. All interest-set changes go through here.
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void open(SocketChannel channel) {
+            try {
+                NioConnection connection = new NioConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.handler = ChatServer.register(connection);
+                connection.dispatch(connection.handler::onConnect);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private final class NioConnection implements ClientConnection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ChatServer.ClientHandler handler;
+
+        private final OutboundQueue queue = ChatServer.newOutboundQueue();
+        // Set while a flush task is queued on the reactor, so a burst of sends wakes it once.
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Buffers left over from a short write; reactor thread only, allocated on demand.
+        private ArrayDeque<ByteBuffer> unsent;
+        private boolean closed;
+        // Output format; reactor thread only. Set once the negotiation ACK has been written.
+        private boolean framesOut;
+
+        // Input tasks not yet run; guarded by itself, like the two flags below.
+        private final ArrayDeque<Runnable> inbox = new ArrayDeque<>(4);
+        private boolean draining;
+        // Set while reading is stopped because too many input tasks are waiting.
+        private boolean readPaused;
+
+        // Bytes of an incomplete input line or frame; only touched by the reactor thread.
+        private byte[] partial;
+        private int partialLength;
+        private boolean firstLine = true;
+        private boolean framesIn;
+        // Body length of the frame being read, or -1 while its length prefix is incomplete.
+        private int frameLength = -1;
+
+        NioConnection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+        }
+
+        public void send(OutboundMessage message) {
+            if (!queue.offer(message)) {
+                System.out.println("Outbound queue full, disconnecting slow client.");
+                close();
+                return;
+            }
+            scheduleFlush();
+        }
+
+        public void sendAndWait(OutboundMessage message) {
+            scheduleFlush(); // Make sure the reactor is draining before we wait for space.
+            queue.put(message);
+            scheduleFlush();
+        }
+
+        public int queuedMessages() {
+            return queue.size();
+        }
+
+        public void close() {
+            reactor.execute(this::disconnect);
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                reactor.execute(() -> {
+                    flushScheduled.set(false);
+                    if (!closed && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                        onWritable();
+                    }
+                });
+            }
+        }
+
+        // Writes as much queued output as the socket takes, gathering several messages per
+        // system call. Waits for OP_WRITE when the socket buffer is full.
+        void onWritable() {
+            ByteBuffer[] batch = reactor.writeBatch;
+            try {
+                while (true) {
+                    int count = 0;
+                    while (unsent != null && count < batch.length && !unsent.isEmpty()) {
+                        batch[count++] = unsent.poll();
+                    }
+                    OutboundMessage message;
+                    while (count + 1 < batch.length && (message = queue.poll()) != null) {
+                        if (framesOut) {
+                            count = message.frameBuffers(batch, count);
+                        } else {
+                            batch[count++] = ByteBuffer.wrap(message.bytes());
+                        }
+                        if (message.switchesToFrames()) {
+                            framesOut = true;
+                        }
+                    }
+                    if (count == 0) {
+                        unsent = null;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    channel.write(batch, 0, count);
+                    int first = 0;
+                    while (first < count && !batch[first].hasRemaining()) {
+                        first++;
+                    }
+                    if (first < count) {
+                        if (unsent == null) {
+                            unsent = new ArrayDeque<>();
+                        }
+                        for (int i = count - 1; i >= first; i--) {
+                            unsent.addFirst(batch[i]);
+                        }
+                        Arrays.fill(batch, 0, count, null);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        void onReadable(ByteBuffer buffer) {
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                disconnect();
+                return;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining() && !framesIn) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    String line = takeLine();
+                    if (firstLine && ChatServer.isFramesHello(line)) {
+                        framesIn = true; // The rest of the buffer is already frames.
+                        dispatch(handler::startFrames);
+                    } else {
+                        dispatch(() -> handler.handleLine(line));
+                    }
+                    firstLine = false;
+                } else if (!appendToLine(b)) {
+                    System.out.println("Closing connection that sent a line over " + MAX_LINE_LENGTH + " bytes.");
+                    disconnect();
+                    return;
+                }
+            }
+            if (framesIn && !readFrames(buffer)) {
+                disconnect();
+                return;
+            }
+            if (partialLength == 0) {
+                partial = null; // Idle connections keep no line buffer around.
+            }
+            boolean pause;
+            synchronized (inbox) {
+                pause = !readPaused && inbox.size() >= MAX_PENDING_TASKS;
+                readPaused |= pause;
+            }
+            if (pause) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                Metrics.NIO_READ_PAUSES.increment();
+            }
+        }
+
+        // Runs on the reactor thread once the workers have caught up.
+        private void resumeReading() {
+            if (!closed) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // Collects frames from the buffer, dispatching each complete one. Returns false on a
+        // malformed or oversized frame.
+        private boolean readFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                int wanted = frameLength < 0 ? 4 : 4 + frameLength;
+                if (partial == null || partial.length < wanted) {
+                    partial = Arrays.copyOf(partial == null ? new byte[0] : partial, Math.max(wanted, 128));
+                }
+                int n = Math.min(buffer.remaining(), wanted - partialLength);
+                buffer.get(partial, partialLength, n);
+                partialLength += n;
+                if (partialLength < wanted) {
+                    return true;
+                }
+                if (frameLength < 0) {
+                    frameLength = BinaryProtocol.getInt(partial, 0);
+                    if (frameLength < BinaryProtocol.HEADER_LENGTH || frameLength > BinaryProtocol.MAX_FRAME_LENGTH) {
+                        System.out.println("Closing connection that sent a bad frame length " + frameLength + ".");
+                        return false;
+                    }
+                    continue;
+                }
+                BinaryProtocol.Frame frame;
+                try {
+                    frame = BinaryProtocol.decode(partial, 4, frameLength);
+                } catch (IOException e) {
+                    System.out.println("Closing connection that sent a bad frame: " + e.getMessage());
+                    return false;
+                }
+                partialLength = 0;
+                frameLength = -1;
+                dispatch(() -> handler.handleFrame(frame));
+            }
+            return true;
+        }
+
+        private boolean appendToLine(byte b) {
+            if (partial == null) {
+                partial = new byte[128];
+            } else if (partialLength == partial.length) {
+                if (partial.length >= MAX_LINE_LENGTH) {
+                    return false;
+                }
+                partial = Arrays.copyOf(partial, Math.min(partial.length * 2, MAX_LINE_LENGTH));
+            }
+            partial[partialLength++] = b;
+            return true;
+        }
+
+        private String takeLine() {
+            int length = partialLength;
+            if (length > 0 && partial[length - 1] == '\r') {
+                length--;
+            }
+            String line = length == 0 ? "" : new String(partial, 0, length, StandardCharsets.UTF_8);
+            partialLength = 0;
+            return line;
+        }
+
+        // Runs on the reactor thread. Closes the channel and schedules onDisconnect once.
+        private void disconnect() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.close();
+            unsent = null;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            dispatch(handler::onDisconnect);
+        }
+
+        // Queues work for this connection; tasks run in order on the worker pool.
+        void dispatch(Runnable task) {
+            synchronized (inbox) {
+                inbox.add(task);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            workers.execute(this::drainInbox);
+        }
+
+        private void drainInbox() {
+            while (true) {
+                Runnable task;
+                boolean resume = false;
+                synchronized (inbox) {
+                    task = inbox.poll();
+                    if (readPaused && inbox.size() <= MAX_PENDING_TASKS / 2) {
+                        readPaused = false;
+                        resume = true;
+                    }
+                    if (task == null) {
+                        draining = false;
+                    }
+                }
+                if (resume) {
+                    reactor.execute(this::resumeReading);
+                }
+                if (task == null) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
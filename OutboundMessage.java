@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One message of server output. It carries both the text-protocol line and the typed fields
+// of the binary frame; each wire form is encoded on first use and then shared by every
+// recipient's queue that needs it. A message logged for several users gets one copy per
+// recipient from withSeq(). The copies share the original's text and one frame built with a
+// placeholder sequence number; each only adds a header with its own number.
+public final class OutboundMessage {
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final byte type;
+    private final int senderId;
+    private final int targetId;
+    private final String body;
+    private final String text;
+    private final boolean switchesToFrames;
+    // The recipient's log line number, or -1.
+    private final long seq;
+    // Where the shared encodings live: this message itself unless made by withSeq().
+    private final OutboundMessage original;
+    // Encoded lazily; two writers racing on the first use produce identical bytes.
+    private volatile byte[] bytes;
+    private volatile byte[] payload;
+    private volatile byte[] frame;
+    private volatile byte[] seqFrame;
+
+    // A notice or reply that only exists as text; sent as a TEXT frame to binary clients.
+    public OutboundMessage(String text) {
+        this(BinaryProtocol.TEXT, 0, 0, text, text, false);
+    }
+
+    // body is the bare message carried in the frame; text is the full line text clients see.
+    public OutboundMessage(byte type, int senderId, int targetId, String body, String text) {
+        this(type, senderId, targetId, body, text, false);
+    }
+
+    private OutboundMessage(byte type, int senderId, int targetId, String body, String text, boolean switchesToFrames) {
+        this.type = type;
+        this.senderId = senderId;
+        this.targetId = targetId;
+        this.body = body;
+        this.text = text;
+        this.switchesToFrames = switchesToFrames;
+        this.seq = -1;
+        this.original = this;
+    }
+
+    private OutboundMessage(OutboundMessage original, long seq) {
+        this.type = original.type;
+        this.senderId = original.senderId;
+        this.targetId = original.targetId;
+        this.body = original.body;
+        this.text = original.text;
+        this.switchesToFrames = false;
+        this.seq = seq;
+        this.original = original;
+    }
+
+    // This message as logged for one recipient under the given sequence number.
+    public OutboundMessage withSeq(long seq) {
+        return new OutboundMessage(original, seq);
+    }
+
+    // Tells a frames client that a line it already shows was logged under seq. Text clients
+    // get nothing.
+    static OutboundMessage seen(long seq) {
+        return new OutboundMessage(BinaryProtocol.SEQ, 0, 0, "", "", false).withSeq(seq);
+    }
+
+    // The negotiation ACK. Written as text; the writer sends frames from then on.
+    static OutboundMessage switchToFrames() {
+        return new OutboundMessage(BinaryProtocol.TEXT, 0, 0, BinaryProtocol.ACK, BinaryProtocol.ACK, true);
+    }
+
+    public String text() {
+        return text;
+    }
+
+    boolean switchesToFrames() {
+        return switchesToFrames;
+    }
+
+    // Text-protocol bytes including the trailing newline. Shared; callers must not modify them.
+    public byte[] bytes() {
+        if (original != this) {
+            return type == BinaryProtocol.SEQ ? NO_BYTES : original.bytes();
+        }
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            String line = text;
+            if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+                line = line.replace("\r", "").replace('\n', ' '); // A text line cannot hold a newline.
+            }
+            encoded = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            bytes = encoded;
+        }
+        return encoded;
+    }
+
+    // Puts the binary frame, length prefix included, into buffers from index count on and
+    // returns the new count; needs room for two. The buffers share bytes with other copies.
+    int frameBuffers(ByteBuffer[] buffers, int count) {
+        if (seq < 0) {
+            buffers[count++] = ByteBuffer.wrap(original.frame());
+            return count;
+        }
+        byte[] shared = original.seqFrame();
+        buffers[count++] = ByteBuffer.wrap(BinaryProtocol.seqHeader(shared, seq));
+        if (shared.length > BinaryProtocol.SEQ_HEADER_LENGTH) {
+            buffers[count++] = ByteBuffer.wrap(shared, BinaryProtocol.SEQ_HEADER_LENGTH,
+                    shared.length - BinaryProtocol.SEQ_HEADER_LENGTH);
+        }
+        return count;
+    }
+
+    // Writes the binary frame, length prefix included.
+    void writeFrame(OutputStream out) throws IOException {
+        if (seq < 0) {
+            out.write(original.frame());
+            return;
+        }
+        byte[] shared = original.seqFrame();
+        out.write(BinaryProtocol.seqHeader(shared, seq));
+        out.write(shared, BinaryProtocol.SEQ_HEADER_LENGTH, shared.length - BinaryProtocol.SEQ_HEADER_LENGTH);
+    }
+
+    // The frame without a sequence number. Original only.
+    private byte[] frame() {
+        byte[] encoded = frame;
+        if (encoded == null) {
+            encoded = BinaryProtocol.frame(type, senderId, targetId, -1, payload());
+            frame = encoded;
+        }
+        return encoded;
+    }
+
+    // The frame with sequence number 0, for the copies to patch in their header. Original only.
+    private byte[] seqFrame() {
+        byte[] encoded = seqFrame;
+        if (encoded == null) {
+            encoded = BinaryProtocol.frame(type, senderId, targetId, 0, payload());
+            seqFrame = encoded;
+        }
+        return encoded;
+    }
+
+    private byte[] payload() {
+        byte[] encoded = payload;
+        if (encoded == null) {
+            encoded = BinaryProtocol.payload(body);
+            payload = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayDeque;
+
+// Bounded per-client queue between message producers and the connection's writer.
+// When a client reads too slowly and the queue fills, the slow-consumer policy decides
+// what happens; producers are never blocked by someone else's socket. The protocol switch
+// message is never dropped, since the writer changes wire format when it passes it.
+public class OutboundQueue {
+    public enum Policy {
+        DROP_OLDEST,  // Discard the oldest queued message to make room.
+        DISCONNECT,   // Close the client's connection.
+        COALESCE;     // Replace the backlog with a single "N messages skipped" notice.
+
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final ArrayDeque<OutboundMessage> queue = new ArrayDeque<>(4);
+    private final int capacity;
+    private final Policy policy;
+    // Stands in for everything dropped by COALESCE; turned into a notice when it is taken.
+    private final OutboundMessage skipMarker = new OutboundMessage("");
+    private int skipped;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, Policy policy) {
+        this.capacity = Math.max(2, capacity);
+        this.policy = policy;
+    }
+
+    // Queues a message without blocking. Returns false if the client must be disconnected.
+    public synchronized boolean offer(OutboundMessage message) {
+        if (closed) {
+            return true;
+        }
+        if (queue.size() >= capacity) {
+            switch (policy) {
+                case DISCONNECT:
+                    Metrics.SLOW_DISCONNECTS.increment();
+                    return false;
+                case DROP_OLDEST:
+                    Metrics.OUTBOUND_DROPPED.increment();
+                    OutboundMessage oldest = queue.pollFirst();
+                    if (oldest.switchesToFrames()) {
+                        queue.pollFirst();
+                        queue.addFirst(oldest);
+                    }
+                    break;
+                case COALESCE:
+                    OutboundMessage protocolSwitch = null;
+                    for (OutboundMessage queued : queue) {
+                        if (queued.switchesToFrames()) {
+                            protocolSwitch = queued;
+                        } else if (queued != skipMarker) {
+                            skipped++;
+                            Metrics.OUTBOUND_DROPPED.increment();
+                        }
+                    }
+                    queue.clear();
+                    if (protocolSwitch != null) {
+                        queue.addLast(protocolSwitch);
+                    }
+                    queue.addLast(skipMarker);
+                    notifyAll(); // Room for waiting put() calls too.
+                    break;
+            }
+        }
+        queue.addLast(message);
+        if (queue.size() == 1) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    // Queues a message, waiting for space instead of applying the policy. Used for a
+    // client's own replies (such as history replay) on that client's own thread.
+    public synchronized void put(OutboundMessage message) {
+        try {
+            while (!closed && queue.size() >= capacity) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!closed) {
+            queue.addLast(message);
+            notifyAll();
+        }
+    }
+
+    // Returns the next message, or null if the queue is empty.
+    public synchronized OutboundMessage poll() {
+        OutboundMessage message = queue.pollFirst();
+        if (message != null && queue.size() == capacity - 1) {
+            notifyAll(); // Wake a waiting put().
+        }
+        if (message == skipMarker) {
+            message = new OutboundMessage("--- " + skipped + " messages skipped, connection too slow ---");
+            skipped = 0;
+        }
+        return message;
+    }
+
+    // Waits for the next message. Returns null once the queue has been closed.
+    public synchronized OutboundMessage take() throws InterruptedException {
+        while (!closed && queue.isEmpty()) {
+            wait();
+        }
+        return closed ? null : poll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+}
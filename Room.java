@@ -0,0 +1,55 @@
+// A named chat room and the IDs of its members on this server. Fan-out works on a snapshot
+// of the members, so no lock is held while messages are queued.
+public final class Room {
+    static final int MAX_NAME_LENGTH = 32;
+
+    private final String name;
+    // Guarded by this.
+    private final IntSet members = new IntSet();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    // Lower-cases a room name, or returns null unless it is 1-32 letters, digits, '-' or '_'.
+    static String normalizeName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return null;
+            }
+        }
+        return name.toLowerCase(java.util.Locale.ROOT);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    synchronized boolean add(int userId) {
+        return members.add(userId);
+    }
+
+    synchronized boolean remove(int userId) {
+        return members.remove(userId);
+    }
+
+    synchronized boolean contains(int userId) {
+        return members.contains(userId);
+    }
+
+    synchronized int size() {
+        return members.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    synchronized int[] members() {
+        return members.toArray();
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+// Full-text search over each user's chat log. A background thread tails the SegmentedLog, so
+// nothing is added to the message path: every line is decrypted once, split into words and
+// posted under the user's sequence number for it; a group line is decrypted once for all its
+// recipients. Per user the index maps each word to the ascending list of lines containing it.
+// Words are kept only as keyed 64-bit hashes (CryptoEngine.termHash), so neither memory nor the
+// snapshot file holds them in the clear.
+//
+// The index is saved to search.idx in the log directory every minute while it changes and on
+// close, together with the segment the tail had reached. After a restart the tail continues
+// from that segment, skipping lines already indexed, instead of reading the whole log again.
+// A query scores every line by the summed rarity (inverse document frequency) of the query
+// words it contains, so lines with more and rarer words come first and newer lines break ties.
+final class SearchIndex {
+    static final String FILE_NAME = "search.idx";
+
+    private static final int FILE_MAGIC = 0x43485349; // "CHSI"
+    private static final int FILE_VERSION = 1;
+    private static final long SAVE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long POLL_MILLIS = 1000;
+    private static final int MAX_TERM_LENGTH = 64;
+    // Queries with more words are cut to this many.
+    private static final int MAX_QUERY_TERMS = 16;
+    static final int MAX_HITS = 1000;
+
+    // Lines of one user containing one word, ascending.
+    private static final class Postings {
+        long[] seqs;
+        int count;
+
+        Postings(int capacity) {
+            seqs = new long[capacity];
+        }
+
+        void add(long seq) {
+            if (count > 0 && seqs[count - 1] == seq) {
+                return; // The word occurs more than once in the line.
+            }
+            if (count == seqs.length) {
+                seqs = Arrays.copyOf(seqs, count * 2);
+            }
+            seqs[count++] = seq;
+        }
+    }
+
+    // One user's index.
+    private static final class UserIndex {
+        final Map<Long, Postings> terms = new HashMap<>();
+        // Lines indexed and still searchable; the document count for term rarity.
+        int lines;
+        // Lines below this are indexed, or were cleared first.
+        long nextSeq;
+    }
+
+    private final SegmentedLog log;
+    private final File file;
+    private final UnaryOperator<String> decrypt;
+    private final ToLongFunction<String> termHash;
+    private final Thread thread;
+    private volatile boolean stopping;
+
+    // Written by the indexer thread under this lock; searches read under it.
+    private final Map<Integer, UserIndex> users = new HashMap<>();
+    // Indexer thread only: the segment being tailed and whether anything changed since the save.
+    private long segmentId;
+    private boolean dirty;
+
+    private SearchIndex(SegmentedLog log, File directory, UnaryOperator<String> decrypt,
+                        ToLongFunction<String> termHash) {
+        this.log = log;
+        this.file = new File(directory, FILE_NAME);
+        this.decrypt = decrypt;
+        this.termHash = termHash;
+        this.thread = new Thread(this::run, "chat-search-indexer");
+        this.thread.setDaemon(true);
+    }
+
+    // Loads the saved index from directory, if there is a usable one, and starts tailing the log.
+    static SearchIndex open(SegmentedLog log, File directory, UnaryOperator<String> decrypt,
+                            ToLongFunction<String> termHash) {
+        SearchIndex index = new SearchIndex(log, directory, decrypt, termHash);
+        if (index.file.exists()) {
+            try {
+                index.load();
+            } catch (IOException e) {
+                System.out.println("Search index: " + e.getMessage() + "; rebuilding it from the log");
+                index.users.clear();
+                index.segmentId = 0;
+            }
+        }
+        index.thread.start();
+        return index;
+    }
+
+    // Stops the indexer, within a poll interval, and saves the index.
+    void close() {
+        stopping = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the user's lines matching the query, best first, at most MAX_HITS.
+    long[] search(int userId, String query) {
+        Set<Long> keys = new LinkedHashSet<>();
+        for (String term : terms(query)) {
+            if (keys.size() == MAX_QUERY_TERMS) {
+                break;
+            }
+            keys.add(termHash.applyAsLong(term));
+        }
+        long first = log.firstSeq(userId);
+        Map<Long, double[]> scores = new HashMap<>();
+        synchronized (this) {
+            UserIndex index = users.get(userId);
+            if (index == null) {
+                return new long[0];
+            }
+            for (long key : keys) {
+                Postings postings = index.terms.get(key);
+                if (postings == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (double) Math.max(index.lines, postings.count) / postings.count);
+                for (int i = postings.count - 1; i >= 0 && postings.seqs[i] >= first; i--) {
+                    scores.computeIfAbsent(postings.seqs[i], seq -> new double[1])[0] += idf;
+                }
+            }
+        }
+        List<Map.Entry<Long, double[]>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Double.compare(b.getValue()[0], a.getValue()[0])
+                : Long.compare(b.getKey(), a.getKey()));
+        long[] hits = new long[Math.min(ranked.size(), MAX_HITS)];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = ranked.get(i).getKey();
+        }
+        return hits;
+    }
+
+    // Lower-cased words of two or more letters or digits.
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= 2 && i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    // "[User 7] hi", "[#ops][7] hi", "You: (@7) hi" and "AI: hi" all become "hi".
+    static String messageText(String line) {
+        int at = 0;
+        int close;
+        while (line.startsWith("[", at) && (close = line.indexOf(']', at)) > 0) {
+            at = close + 1;
+        }
+        if (at > 0) {
+            return line.substring(at);
+        }
+        int colon = line.indexOf(": ");
+        if (colon <= 0 || colon > 10 || line.lastIndexOf(' ', colon) >= 0) {
+            return line;
+        }
+        at = colon + 2; // "You: ", "AI: ", "AI-Math: "
+        if (line.startsWith("You: (", 0) && (close = line.indexOf(')', at)) > 0) {
+            at = close + 1; // "(@7)", "(AI)", "(Math)"
+        }
+        return line.substring(at);
+    }
+
+    private void run() {
+        long lastSave = System.nanoTime();
+        LogSegment segment = null;
+        long offset = 0;
+        while (!stopping) {
+            try {
+                if (segment == null) {
+                    segment = log.segmentFrom(segmentId);
+                    offset = 0;
+                    if (segment == null) {
+                        Thread.sleep(POLL_MILLIS);
+                        continue;
+                    }
+                    segmentId = segment.id;
+                }
+                boolean active = log.isActive(segment);
+                // Read the length before the records: everything below it is complete.
+                long end = segment.dataLength;
+                offset = indexRecords(segment, offset, end);
+                if (!active) {
+                    segmentId = segment.id + 1;
+                    segment = null;
+                } else if (offset == end) {
+                    if (dirty && System.nanoTime() - lastSave >= SAVE_INTERVAL_NANOS) {
+                        save();
+                        lastSave = System.nanoTime();
+                    }
+                    log.awaitAppend(segment, end, POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                // Most likely the segment was rewritten by the compactor and the old file is
+                // gone; start it again from its current generation, skipping what is done.
+                System.out.println("Search index: rereading segment " + segmentId + " (" + e.getMessage() + ")");
+                segment = null;
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+        if (dirty) {
+            try {
+                save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Indexes the records of segment from offset up to end; returns where it stopped.
+    private long indexRecords(LogSegment segment, long offset, long end) throws IOException {
+        if (offset >= end) {
+            return offset;
+        }
+        try (LogSegment.Reader reader = segment.openReader()) {
+            while (offset < end && !stopping) {
+                LogSegment.Record record = reader.read(offset);
+                offset = record.end();
+                if (record.kind == LogSegment.CLEAR) {
+                    clear(record.userIds[0], record.seqs[0]);
+                } else {
+                    index(record);
+                }
+            }
+        }
+        return offset;
+    }
+
+    private void index(LogSegment.Record record) {
+        boolean wanted = false;
+        synchronized (this) {
+            for (int i = 0; i < record.userIds.length && !wanted; i++) {
+                UserIndex index = users.get(record.userIds[i]);
+                wanted = index == null || record.seqs[i] >= index.nextSeq;
+            }
+        }
+        if (!wanted) {
+            return; // Indexed before the last restart.
+        }
+        List<String> terms;
+        try {
+            terms = terms(messageText(decrypt.apply(record.textString())));
+        } catch (RuntimeException e) {
+            terms = new ArrayList<>(); // Not a line this key can read; it still takes its number.
+        }
+        long[] keys = new long[terms.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = termHash.applyAsLong(terms.get(i));
+        }
+        synchronized (this) {
+            for (int i = 0; i < record.userIds.length; i++) {
+                UserIndex index = users.computeIfAbsent(record.userIds[i], id -> new UserIndex());
+                long seq = record.seqs[i];
+                if (seq < index.nextSeq) {
+                    continue;
+                }
+                for (long key : keys) {
+                    index.terms.computeIfAbsent(key, k -> new Postings(2)).add(seq);
+                }
+                index.lines++;
+                index.nextSeq = seq + 1;
+            }
+        }
+        dirty = true;
+        Metrics.SEARCH_INDEXED.add(record.userIds.length);
+    }
+
+    // A \clear hides every line below seq; all of them were indexed before it.
+    private synchronized void clear(int userId, long seq) {
+        UserIndex index = users.get(userId);
+        if (index == null || index.nextSeq < seq) {
+            index = new UserIndex();
+            users.put(userId, index);
+        } else if (index.lines == 0) {
+            return;
+        } else {
+            index.terms.clear();
+            index.lines = 0;
+        }
+        index.nextSeq = Math.max(index.nextSeq, seq);
+        dirty = true;
+    }
+
+    // Snapshot format, big-endian:
+    //   int magic, int version, long segment id to continue from, int user count,
+    //   per user: int user ID, long next seq, int lines, int term count,
+    //     per term: long hash, int posting count, postings as varint gaps.
+    // Written on the indexer thread, which is the only writer, so no lock is needed; lines
+    // that expired are left out. The file is replaced only once complete.
+    private void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(segmentId);
+            out.writeInt(users.size());
+            for (Map.Entry<Integer, UserIndex> user : users.entrySet()) {
+                UserIndex index = user.getValue();
+                long first = log.firstSeq(user.getKey());
+                out.writeInt(user.getKey());
+                out.writeLong(index.nextSeq);
+                out.writeInt(index.lines);
+                out.writeInt(index.terms.size());
+                for (Map.Entry<Long, Postings> term : index.terms.entrySet()) {
+                    Postings postings = term.getValue();
+                    int from = 0;
+                    while (from < postings.count && postings.seqs[from] < first) {
+                        from++;
+                    }
+                    out.writeLong(term.getKey());
+                    out.writeInt(postings.count - from);
+                    long previous = 0;
+                    for (int i = from; i < postings.count; i++) {
+                        writeVarLong(out, postings.seqs[i] - previous);
+                        previous = postings.seqs[i];
+                    }
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException(file + " is not a search index");
+            }
+            segmentId = in.readLong();
+            int userCount = in.readInt();
+            for (int u = 0; u < userCount; u++) {
+                int userId = in.readInt();
+                UserIndex index = new UserIndex();
+                index.nextSeq = in.readLong();
+                index.lines = in.readInt();
+                int termCount = in.readInt();
+                for (int t = 0; t < termCount; t++) {
+                    long key = in.readLong();
+                    int count = in.readInt();
+                    if (count < 0 || count > index.nextSeq) {
+                        throw new IOException(file + " is corrupt");
+                    }
+                    Postings postings = new Postings(Math.max(2, count));
+                    long seq = 0;
+                    for (int i = 0; i < count; i++) {
+                        seq += readVarLong(in);
+                        postings.seqs[i] = seq;
+                    }
+                    postings.count = count;
+                    if (count > 0) {
+                        index.terms.put(key, postings);
+                    }
+                }
+                users.put(userId, index);
+            }
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad number in " + FILE_NAME);
+    }
+}
@@ -0,0 +1,718 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The chat log: every user's lines, with group messages stored once, in a series of segment
+// files shared by all users (see LogSegment), so the file count follows the log size rather
+// than the number of users. A user's sequence numbers are consecutive across segments; in
+// memory each user has a list of runs saying which segment holds which numbers, so reading a
+// page touches only the segments it needs. \clear appends a tombstone that hides the user's
+// older lines at once; the space comes back when the compactor rewrites those segments.
+//
+// Threads: the ChatLogWriter thread appends, syncs and rotates; the LogCompactor thread
+// compresses, compacts and expires closed segments; client handlers read. The run table is
+// guarded by this object, which is never held during file I/O.
+final class SegmentedLog {
+    private final File directory;
+    private final long segmentBytes;
+    private final long segmentAgeMillis;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final LogCompactor compactor;
+
+    // Guarded by this.
+    private final Map<Integer, History> histories = new HashMap<>();
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private LogSegment active;
+
+    // Writer thread only.
+    private FileChannel activeChannel;
+    private boolean unsynced;
+
+    // One user's log: sequence numbers [firstSeq, nextSeq), the lines themselves in runs.
+    private static final class History {
+        long firstSeq;
+        long nextSeq;
+        // The latest \clear; its tombstone survives compaction so numbering survives a restart.
+        long clearSeq = -1;
+        final ArrayList<Run> runs = new ArrayList<>(2);
+    }
+
+    // Consecutive lines of one user in one segment. Their offsets are kept in memory while the
+    // segment is plain and read from its index file once it is compressed.
+    private static final class Run {
+        final LogSegment segment;
+        final long firstSeq;
+        int count;
+        int[] offsets;
+        final long indexPosition;
+
+        Run(LogSegment segment, long firstSeq, int count, int[] offsets, long indexPosition) {
+            this.segment = segment;
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.offsets = offsets;
+            this.indexPosition = indexPosition;
+        }
+
+        long end() {
+            return firstSeq + count;
+        }
+    }
+
+    // A line read back, with its sequence number.
+    static final class Line {
+        final long seq;
+        final String text;
+
+        Line(long seq, String text) {
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    // Records gathered by the writer thread and appended with one write.
+    static final class Batch {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int[] users = new int[64];
+        private long[] seqs = new long[64];
+        private int[] offsets = new int[64];
+        private int entries;
+        private final List<long[]> clears = new ArrayList<>();
+
+        void line(int userId, long seq, String text) {
+            int offset = bytes.size();
+            LogSegment.writeRecord(bytes, LogSegment.line(userId, seq, text.getBytes(StandardCharsets.UTF_8)));
+            addEntry(userId, seq, offset);
+        }
+
+        void group(int[] userIds, long[] userSeqs, String text) {
+            int offset = bytes.size();
+            LogSegment.writeRecord(bytes, LogSegment.group(userIds, userSeqs, userIds.length,
+                    text.getBytes(StandardCharsets.UTF_8)));
+            for (int i = 0; i < userIds.length; i++) {
+                addEntry(userIds[i], userSeqs[i], offset);
+            }
+        }
+
+        // seq is the user's first sequence number after the clear.
+        void clear(int userId, long seq) {
+            LogSegment.writeRecord(bytes, LogSegment.clear(userId, seq));
+            clears.add(new long[] {userId, seq});
+        }
+
+        boolean isEmpty() {
+            return bytes.size() == 0;
+        }
+
+        private void addEntry(int userId, long seq, int offset) {
+            if (entries == users.length) {
+                users = Arrays.copyOf(users, entries * 2);
+                seqs = Arrays.copyOf(seqs, entries * 2);
+                offsets = Arrays.copyOf(offsets, entries * 2);
+            }
+            users[entries] = userId;
+            seqs[entries] = seq;
+            offsets[entries] = offset;
+            entries++;
+        }
+    }
+
+    private SegmentedLog(File directory, long segmentBytes, long segmentAgeMillis, long retentionMillis,
+                         long retentionBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentAgeMillis = segmentAgeMillis;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        this.compactor = new LogCompactor(this);
+    }
+
+    // Opens the log in directory: loads the segments there, repairs a torn tail left by a crash,
+    // imports per-user logs from older versions, then starts a fresh active segment and the
+    // compactor. Segments are rotated at segmentBytes or segmentAgeMillis (0 = no age limit);
+    // closed segments go once older than retentionMillis or beyond retentionBytes in total
+    // (0 = keep).
+    static SegmentedLog open(File directory, long segmentBytes, long segmentAgeMillis, long retentionMillis,
+                             long retentionBytes) throws IOException {
+        SegmentedLog log = new SegmentedLog(directory, segmentBytes, segmentAgeMillis, retentionMillis, retentionBytes);
+        List<LogSegment> uncompressed = log.load();
+        long nextId = log.segments.isEmpty() ? 1 : log.segments.lastKey() + 1;
+        log.startSegment(LogSegment.create(directory, nextId));
+        for (LogSegment segment : uncompressed) {
+            log.compactor.segmentClosed(segment);
+        }
+        log.importLegacyLogs();
+        log.compactor.start();
+        return log;
+    }
+
+    // Reading.
+
+    synchronized long firstSeq(int userId) {
+        History history = histories.get(userId);
+        return history == null ? 0 : history.firstSeq;
+    }
+
+    // The number the user's next line will get; lines below firstSeq are cleared or expired.
+    synchronized long nextSeq(int userId) {
+        History history = histories.get(userId);
+        return history == null ? 0 : history.nextSeq;
+    }
+
+    // Highest user ID in [from, to) that has a log, or -1. User IDs above it are unused.
+    synchronized int maxUserId(int from, int to) {
+        int max = -1;
+        for (int userId : histories.keySet()) {
+            if (userId >= from && userId < to && userId > max) {
+                max = userId;
+            }
+        }
+        return max;
+    }
+
+    // Returns the user's lines with sequence numbers in [from, to) that are still kept. Only the
+    // runs are looked up under the lock; records are read after it is released.
+    List<Line> read(int userId, long from, long to) throws IOException {
+        List<Run> slices = new ArrayList<>();
+        synchronized (this) {
+            History history = histories.get(userId);
+            if (history == null) {
+                return new ArrayList<>();
+            }
+            from = Math.max(from, history.firstSeq);
+            to = Math.min(to, history.nextSeq);
+            for (Run run : history.runs) {
+                long start = Math.max(from, run.firstSeq);
+                long end = Math.min(to, run.end());
+                if (start < end) {
+                    int skip = (int) (start - run.firstSeq);
+                    int count = (int) (end - start);
+                    slices.add(run.offsets != null
+                            ? new Run(run.segment, start, count, Arrays.copyOfRange(run.offsets, skip, skip + count), 0)
+                            : new Run(run.segment, start, count, null, run.indexPosition + 4L * skip));
+                }
+            }
+        }
+        List<Line> lines = new ArrayList<>((int) Math.max(0, Math.min(to - from, 1024)));
+        for (Run slice : slices) {
+            try (LogSegment.Reader reader = slice.segment.openReader()) {
+                int[] offsets = slice.offsets != null ? slice.offsets : reader.offsets(slice.indexPosition, 0, slice.count);
+                for (int i = 0; i < slice.count; i++) {
+                    lines.add(new Line(slice.firstSeq + i, reader.read(offsets[i]).textString()));
+                }
+            }
+        }
+        return lines;
+    }
+
+    // Tailing the whole log, for the search index: segments in id order, records by offset.
+
+    // The current generation of the first segment with an id of at least id, or null.
+    synchronized LogSegment segmentFrom(long id) {
+        Map.Entry<Long, LogSegment> entry = segments.ceilingEntry(id);
+        return entry == null ? null : entry.getValue();
+    }
+
+    synchronized boolean isActive(LogSegment segment) {
+        return segment == active;
+    }
+
+    // Waits up to timeoutMillis while segment is active and still length bytes long.
+    synchronized void awaitAppend(LogSegment segment, long length, long timeoutMillis) throws InterruptedException {
+        if (segment == active && segment.dataLength == length) {
+            wait(timeoutMillis);
+        }
+    }
+
+    synchronized long segmentCount() {
+        return segments.size();
+    }
+
+    synchronized long totalBytes() {
+        long total = 0;
+        for (LogSegment segment : segments.values()) {
+            total += segment.fileLength();
+        }
+        return total;
+    }
+
+    // Writing; writer thread only.
+
+    // Appends the batch to the active segment, then makes its lines visible to readers. Rotates
+    // to a new segment once the active one is full or old enough.
+    void write(Batch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long base = active.dataLength;
+        ByteBuffer bytes = ByteBuffer.wrap(batch.bytes.toByteArray());
+        while (bytes.hasRemaining()) {
+            activeChannel.write(bytes, base + bytes.position());
+        }
+        unsynced = true;
+        synchronized (this) {
+            active.dataLength = base + bytes.limit();
+            for (int i = 0; i < batch.entries; i++) {
+                addEntry(active, batch.users[i], batch.seqs[i], (int) (base + batch.offsets[i]));
+            }
+            for (long[] clear : batch.clears) {
+                applyClear((int) clear[0], clear[1]);
+            }
+            notifyAll(); // Wakes a tailing reader; see awaitAppend.
+        }
+        long length = active.dataLength;
+        if (length >= segmentBytes
+                || (segmentAgeMillis > 0 && System.currentTimeMillis() - active.createdMillis >= segmentAgeMillis)) {
+            rotate();
+        }
+    }
+
+    // Syncs the active segment if anything was written since the last sync; true if it was.
+    boolean sync() throws IOException {
+        if (!unsynced) {
+            return false;
+        }
+        activeChannel.force(false);
+        unsynced = false;
+        return true;
+    }
+
+    // Stops the compactor and closes the active segment, synced.
+    void close() throws IOException {
+        compactor.stop();
+        sync();
+        activeChannel.close();
+    }
+
+    private void rotate() throws IOException {
+        LogSegment closed = active;
+        activeChannel.force(false);
+        activeChannel.close();
+        unsynced = false;
+        closed.closedMillis = System.currentTimeMillis();
+        startSegment(LogSegment.create(directory, closed.id + 1));
+        compactor.segmentClosed(closed);
+    }
+
+    private void startSegment(LogSegment segment) throws IOException {
+        FileChannel channel = FileChannel.open(segment.dataFile.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        synchronized (this) {
+            segments.put(segment.id, segment);
+            active = segment;
+            notifyAll();
+        }
+        activeChannel = channel;
+    }
+
+    // Run table upkeep; callers hold the lock.
+
+    private History history(int userId) {
+        return histories.computeIfAbsent(userId, id -> new History());
+    }
+
+    private void addEntry(LogSegment segment, int userId, long seq, int offset) {
+        History history = history(userId);
+        Run last = history.runs.isEmpty() ? null : history.runs.get(history.runs.size() - 1);
+        if (last == null || last.segment != segment || last.end() != seq) {
+            last = new Run(segment, seq, 0, new int[8], 0);
+            history.runs.add(last);
+            segment.users.add(userId);
+        }
+        if (last.count == last.offsets.length) {
+            last.offsets = Arrays.copyOf(last.offsets, last.count * 2);
+        }
+        last.offsets[last.count++] = offset;
+        history.nextSeq = Math.max(history.nextSeq, seq + 1);
+        segment.entries++;
+        if (seq < history.firstSeq) {
+            segment.deadEntries++;
+        }
+    }
+
+    private void applyClear(int userId, long seq) {
+        History history = history(userId);
+        history.clearSeq = Math.max(history.clearSeq, seq);
+        history.nextSeq = Math.max(history.nextSeq, seq);
+        hide(history, seq);
+    }
+
+    // Moves the user's first kept sequence number up to first. Runs wholly below it are dropped;
+    // the hidden lines count as dead in their segments, which is what makes them worth compacting.
+    private static void hide(History history, long first) {
+        if (first <= history.firstSeq) {
+            return;
+        }
+        for (Iterator<Run> it = history.runs.iterator(); it.hasNext(); ) {
+            Run run = it.next();
+            long deadFrom = Math.max(run.firstSeq, history.firstSeq);
+            long deadTo = Math.min(run.end(), first);
+            if (deadTo > deadFrom) {
+                run.segment.deadEntries += (int) (deadTo - deadFrom);
+            }
+            if (run.end() <= first) {
+                it.remove();
+            }
+        }
+        history.firstSeq = first;
+    }
+
+    // Removes a segment and every run in it.
+    private void drop(LogSegment segment) {
+        for (int userId : segment.users.toArray()) {
+            History history = histories.get(userId);
+            long end = -1;
+            for (Iterator<Run> it = history.runs.iterator(); it.hasNext(); ) {
+                Run run = it.next();
+                if (run.segment == segment) {
+                    end = Math.max(end, run.end());
+                    it.remove();
+                }
+            }
+            if (end >= 0) {
+                hide(history, end);
+            }
+        }
+        segments.remove(segment.id);
+    }
+
+    // Compactor side.
+
+    // Compressed segments that are at least half cleared lines.
+    synchronized List<LogSegment> compactionCandidates() {
+        List<LogSegment> candidates = new ArrayList<>();
+        for (LogSegment segment : segments.values()) {
+            if (segment.compressed && segment.deadEntries > 0 && segment.deadEntries * 2 >= segment.entries) {
+                candidates.add(segment);
+            }
+        }
+        return candidates;
+    }
+
+    // Drops closed segments past the retention limits, oldest first, and returns them.
+    synchronized List<LogSegment> expire(long nowMillis) {
+        List<LogSegment> expired = new ArrayList<>();
+        if (retentionMillis <= 0 && retentionBytes <= 0) {
+            return expired;
+        }
+        long total = totalBytes();
+        for (LogSegment segment : new ArrayList<>(segments.values())) {
+            if (segment == active) {
+                break;
+            }
+            boolean tooOld = retentionMillis > 0 && nowMillis - segment.closedMillis > retentionMillis;
+            boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+            if (!tooOld && !tooBig) {
+                break;
+            }
+            total -= segment.fileLength();
+            drop(segment);
+            expired.add(segment);
+        }
+        return expired;
+    }
+
+    // Copies a closed segment's live records into its next, compressed generation and moves the
+    // runs over to it; a segment with nothing live is dropped. Returns false if the segment is
+    // no longer current, e.g. expired while queued. Readers that looked up runs before the swap
+    // keep reading the old files, which the compactor deletes later.
+    boolean rewrite(LogSegment old) throws IOException {
+        Map<Integer, long[]> kept = new HashMap<>(); // user -> {first kept seq, latest clear}
+        synchronized (this) {
+            if (segments.get(old.id) != old) {
+                return false;
+            }
+        }
+        LogSegment next = old.nextGeneration();
+        Map<Integer, List<LogSegment.IndexRun>> runs = new LinkedHashMap<>();
+        List<LogSegment.IndexRun> allRuns = new ArrayList<>();
+        List<long[]> clears = new ArrayList<>();
+        int entries = 0;
+        try (LogSegment.Reader in = old.openReader(); LogSegment.Writer out = next.openWriter()) {
+            long offset = 0;
+            while (offset < old.dataLength) {
+                LogSegment.Record record = in.read(offset);
+                offset = record.end();
+                if (record.kind == LogSegment.CLEAR) {
+                    if (record.seqs[0] == keptFrom(kept, record.userIds[0])[1]) {
+                        out.write(record.body());
+                        clears.add(new long[] {record.userIds[0], record.seqs[0]});
+                    }
+                    continue;
+                }
+                int count = 0;
+                int[] users = new int[record.userIds.length];
+                long[] seqs = new long[record.userIds.length];
+                for (int i = 0; i < record.userIds.length; i++) {
+                    if (record.seqs[i] >= keptFrom(kept, record.userIds[i])[0]) {
+                        users[count] = record.userIds[i];
+                        seqs[count] = record.seqs[i];
+                        count++;
+                    }
+                }
+                if (count == 0) {
+                    continue;
+                }
+                long at = out.write(count == record.userIds.length ? record.body()
+                        : LogSegment.group(users, seqs, count, record.text()));
+                for (int i = 0; i < count; i++) {
+                    List<LogSegment.IndexRun> userRuns = runs.computeIfAbsent(users[i], id -> new ArrayList<>());
+                    LogSegment.IndexRun last = userRuns.isEmpty() ? null : userRuns.get(userRuns.size() - 1);
+                    if (last == null || last.firstSeq + last.count != seqs[i]) {
+                        last = new LogSegment.IndexRun(users[i], seqs[i], 0, new int[8]);
+                        userRuns.add(last);
+                        allRuns.add(last);
+                    }
+                    if (last.count == last.offsets.length) {
+                        last.offsets = Arrays.copyOf(last.offsets, last.count * 2);
+                    }
+                    last.offsets[last.count++] = (int) at;
+                    entries++;
+                }
+            }
+            out.finish();
+        }
+
+        if (entries == 0 && clears.isEmpty()) {
+            next.dataFile.delete();
+            synchronized (this) {
+                drop(old);
+            }
+            return true;
+        }
+        next.writeIndex(allRuns, clears);
+        synchronized (this) {
+            for (int userId : old.users.toArray()) {
+                History history = histories.get(userId);
+                int at = -1;
+                for (int i = 0; i < history.runs.size(); ) {
+                    if (history.runs.get(i).segment == old) {
+                        at = at < 0 ? i : at;
+                        history.runs.remove(i);
+                    } else {
+                        i++;
+                    }
+                }
+                List<LogSegment.IndexRun> userRuns = runs.get(userId);
+                if (userRuns == null) {
+                    continue;
+                }
+                next.users.add(userId);
+                for (LogSegment.IndexRun indexRun : userRuns) {
+                    next.entries += indexRun.count;
+                    long dead = Math.min(indexRun.count, Math.max(0, history.firstSeq - indexRun.firstSeq));
+                    next.deadEntries += (int) dead;
+                    // A run cleared during the rewrite was dropped above and stays dropped.
+                    if (at >= 0 && dead < indexRun.count) {
+                        history.runs.add(at++, new Run(next, indexRun.firstSeq, indexRun.count, null, indexRun.position));
+                    }
+                }
+            }
+            segments.put(next.id, next);
+        }
+        return true;
+    }
+
+    // The kept-from state of a user, looked up once per rewrite.
+    private long[] keptFrom(Map<Integer, long[]> kept, int userId) {
+        long[] state = kept.get(userId);
+        if (state == null) {
+            synchronized (this) {
+                History history = histories.get(userId);
+                state = history == null ? new long[] {0, -1} : new long[] {history.firstSeq, history.clearSeq};
+            }
+            kept.put(userId, state);
+        }
+        return state;
+    }
+
+    // Loading.
+
+    // Loads every segment in id order: compressed ones from their indexes, plain ones by scanning.
+    // Of several generations the newest complete one wins and the rest are deleted. Returns the
+    // plain segments, which still need compressing.
+    private List<LogSegment> load() throws IOException {
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        TreeMap<Long, List<long[]>> byId = new TreeMap<>();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete(); // An index that was never finished.
+                continue;
+            }
+            long[] name = LogSegment.parseName(file.getName());
+            if (name != null) {
+                byId.computeIfAbsent(name[0], id -> new ArrayList<>()).add(name);
+            }
+        }
+
+        List<LogSegment> uncompressed = new ArrayList<>();
+        for (Map.Entry<Long, List<long[]>> entry : byId.entrySet()) {
+            long id = entry.getKey();
+            int best = -1;
+            boolean plain = false;
+            for (long[] name : entry.getValue()) {
+                int generation = (int) name[1];
+                if (name[2] == 0) {
+                    plain = true;
+                } else if (name[2] == 2 && generation > best
+                        && new File(directory, String.format("%012d-%d.dz", id, generation)).exists()) {
+                    best = generation;
+                }
+            }
+            for (long[] name : entry.getValue()) {
+                boolean wanted = best >= 0 ? name[1] == best && name[2] != 0 : name[2] == 0;
+                if (!wanted) {
+                    new File(directory, String.format("%012d-%d.%s", id, name[1],
+                            name[2] == 0 ? "log" : name[2] == 1 ? "dz" : "idx")).delete();
+                }
+            }
+            if (best >= 0) {
+                loadCompressed(id, best);
+            } else if (plain) {
+                LogSegment segment = LogSegment.existing(directory, id);
+                if (scan(segment)) {
+                    uncompressed.add(segment);
+                }
+            }
+        }
+        synchronized (this) {
+            for (History history : histories.values()) {
+                hide(history, history.runs.isEmpty() ? history.nextSeq : history.runs.get(0).firstSeq);
+            }
+        }
+        return uncompressed;
+    }
+
+    private void loadCompressed(long id, int generation) throws IOException {
+        List<LogSegment.IndexRun> runs = new ArrayList<>();
+        List<long[]> clears = new ArrayList<>();
+        LogSegment segment = LogSegment.readIndex(directory, id, generation, runs, clears);
+        synchronized (this) {
+            for (LogSegment.IndexRun indexRun : runs) {
+                History history = history(indexRun.userId);
+                history.runs.add(new Run(segment, indexRun.firstSeq, indexRun.count, null, indexRun.position));
+                history.nextSeq = Math.max(history.nextSeq, indexRun.firstSeq + indexRun.count);
+                segment.users.add(indexRun.userId);
+                segment.entries += indexRun.count;
+            }
+            for (long[] clear : clears) {
+                applyClear((int) clear[0], clear[1]);
+            }
+            segments.put(id, segment);
+        }
+    }
+
+    // Reads a plain segment into the run table, cutting off a torn or corrupt tail. Returns
+    // false for an empty segment, which is deleted.
+    private boolean scan(LogSegment segment) throws IOException {
+        long valid = 0;
+        try (LogSegment.Reader in = segment.openReader()) {
+            while (valid < segment.dataLength) {
+                LogSegment.Record record;
+                try {
+                    record = in.read(valid);
+                } catch (IOException e) {
+                    break;
+                }
+                synchronized (this) {
+                    if (record.kind == LogSegment.CLEAR) {
+                        applyClear(record.userIds[0], record.seqs[0]);
+                    } else {
+                        for (int i = 0; i < record.userIds.length; i++) {
+                            addEntry(segment, record.userIds[i], record.seqs[i], (int) valid);
+                        }
+                    }
+                }
+                valid = record.end();
+            }
+        }
+        if (valid < segment.dataLength) {
+            System.out.println("Chat log: cut " + (segment.dataLength - valid) + " bytes of torn records from "
+                    + segment.name());
+            try (FileChannel channel = FileChannel.open(segment.dataFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(false);
+            }
+            segment.dataLength = valid;
+        }
+        if (valid == 0) {
+            segment.dataFile.delete();
+            return false;
+        }
+        synchronized (this) {
+            segments.put(segment.id, segment);
+        }
+        return true;
+    }
+
+    // Copies logs written before segments existed, user_<id>.txt with group messages as
+    // references into group.log, into the active segment and then deletes them. A line's
+    // sequence number is its line number, and batches are written in order, so after a crash
+    // the log holds a prefix of each user's lines and the import carries on after it. The old
+    // files are only deleted once every user's lines are synced.
+    private void importLegacyLogs() throws IOException {
+        File[] userFiles = directory.listFiles((dir, name) -> name.matches("user_\\d+\\.txt"));
+        if (userFiles == null || userFiles.length == 0) {
+            return;
+        }
+        System.out.println("Chat log: importing " + userFiles.length + " per-user logs into segments");
+        File groupFile = new File(directory, GroupLog.FILE_NAME);
+        try (GroupLog.Reader groupLog = groupFile.exists() ? new GroupLog.Reader(directory) : null) {
+            for (File userFile : userFiles) {
+                String name = userFile.getName();
+                int userId = Integer.parseInt(name.substring("user_".length(), name.length() - ".txt".length()));
+                importLegacyLog(userFile, userId, nextSeq(userId), groupLog);
+            }
+        }
+        sync();
+        for (File userFile : userFiles) {
+            String name = userFile.getName();
+            userFile.delete();
+            new File(directory, name.substring(0, name.length() - ".txt".length()) + ".idx").delete();
+        }
+        groupFile.delete();
+    }
+
+    // Imports the user's lines from sequence number 'from' on; earlier ones are already here.
+    private void importLegacyLog(File userFile, int userId, long from, GroupLog.Reader groupLog) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(userFile),
+                StandardCharsets.UTF_8))) {
+            Batch batch = new Batch();
+            long seq = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (seq >= from) {
+                    if (GroupLog.isRef(line)) {
+                        line = groupLog == null ? null : groupLog.read(GroupLog.offsetOf(line));
+                    }
+                    if (line != null) {
+                        batch.line(userId, seq, line);
+                    }
+                }
+                seq++;
+                if (batch.entries == 4096) {
+                    write(batch);
+                    batch = new Batch();
+                }
+            }
+            write(batch);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Session tokens that let a reconnecting client take its user ID back with "\resume". Every
+// connection gets a token; once the connection closes the session is kept for the TTL, with
+// the rooms the user was in. Held in memory only, so a server restart ends all sessions.
+final class SessionRegistry {
+    private static final int TOKEN_BYTES = 16;
+    private static final int MAX_SESSIONS = 100_000;
+
+    static final class Session {
+        final int userId;
+        // False once the connection closed; the session then expires at expiresAt.
+        boolean connected = true;
+        long expiresAt;
+        List<String> rooms = Collections.emptyList();
+
+        Session(int userId) {
+            this.userId = userId;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlNanos;
+    // Least recently used first; the oldest sessions go once MAX_SESSIONS is reached.
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+
+    SessionRegistry(long ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    // Starts a session for a newly connected user and returns its token.
+    String open(int userId) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        synchronized (this) {
+            sessions.put(token, new Session(userId));
+        }
+        return token;
+    }
+
+    // Hands the session to a new connection. Returns null for an unknown or expired token.
+    synchronized Session resume(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (!session.connected && session.expiresAt - System.nanoTime() < 0) {
+            sessions.remove(token);
+            return null;
+        }
+        session.connected = true;
+        return session;
+    }
+
+    // Called when the session's connection closes; starts the TTL.
+    synchronized void suspend(String token, List<String> rooms) {
+        Session session = sessions.get(token);
+        if (session != null) {
+            session.connected = false;
+            session.expiresAt = System.nanoTime() + ttlNanos;
+            session.rooms = rooms;
+        }
+    }
+
+    synchronized void discard(String token) {
+        sessions.remove(token);
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// The plain bus: every frame is written and flushed on the caller's thread. Simple and easy
+// to follow in tests; BatchingMessageBus is the one to run under load.
+//
+// Each node listens on its own address and keeps one outbound link to every other node, used
+// only for sending; inbound links are only read. A link opens with a NODE_HELLO frame naming
+// the sender. Links that drop are retried every second.
+public class TcpMessageBus implements MessageBus {
+    static final byte NODE_HELLO = 127;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final int nodeId;
+    private final Map<Integer, InetSocketAddress> addresses;
+    private final Map<Integer, Peer> peers = new TreeMap<>();
+    // The socket currently read for each node; an older one left over from a restart is ignored.
+    private final Map<Integer, Socket> inbound = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    protected Handler handler;
+    private ServerSocket server;
+    protected volatile boolean closed;
+
+    public TcpMessageBus(int nodeId, Map<Integer, InetSocketAddress> addresses) {
+        if (!addresses.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster list");
+        }
+        this.nodeId = nodeId;
+        this.addresses = addresses;
+    }
+
+    public String name() {
+        return "direct";
+    }
+
+    public void start(Handler handler) throws IOException {
+        this.handler = handler;
+        server = new ServerSocket();
+        server.bind(addresses.get(nodeId));
+        daemon(this::acceptLoop, "bus-accept");
+        for (Map.Entry<Integer, InetSocketAddress> node : addresses.entrySet()) {
+            if (node.getKey() != nodeId) {
+                Peer peer = newPeer(node.getKey(), node.getValue());
+                peers.put(node.getKey(), peer);
+                peer.start();
+            }
+        }
+    }
+
+    public void send(int node, byte[] frame) {
+        Peer peer = peers.get(node);
+        if (peer == null || !peer.offer(frame)) {
+            dropped.increment();
+        }
+    }
+
+    public void broadcast(byte[] frame) {
+        for (Peer peer : peers.values()) {
+            if (!peer.offer(frame)) {
+                dropped.increment();
+            }
+        }
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        for (Peer peer : peers.values()) {
+            peer.disconnect(null);
+        }
+    }
+
+    protected Peer newPeer(int node, InetSocketAddress address) {
+        return new Peer(node, address);
+    }
+
+    static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                daemon(() -> readLoop(socket), "bus-reader");
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        int node = -1;
+        try {
+            BinaryProtocol.Input in = new BinaryProtocol.Input(socket.getInputStream());
+            BinaryProtocol.Frame hello = in.readFrame();
+            if (hello == null || hello.type != NODE_HELLO || !peers.containsKey(hello.senderId)) {
+                System.out.println("Bus: closing a link that did not introduce itself as a cluster node.");
+                return;
+            }
+            node = hello.senderId;
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) {
+                // The node restarted before its old link was noticed as dead.
+                previous.close();
+                nodeDown(node);
+            }
+            System.out.println("Bus: node " + node + " connected.");
+            BinaryProtocol.Frame frame;
+            while ((frame = in.readFrame()) != null) {
+                handler.onMessage(node, frame);
+            }
+        } catch (IOException e) {
+            // Link lost; handled below.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (node >= 0 && inbound.remove(node, socket)) {
+            System.out.println("Bus: node " + node + " disconnected.");
+            nodeDown(node);
+        }
+    }
+
+    // The node's inbound link is gone, so it has most likely restarted and our outbound link to
+    // it is dead too, though a write may not fail for a while. Dropping that link now makes it
+    // reconnect and announce this node's users again.
+    private void nodeDown(int node) {
+        peers.get(node).disconnect(null);
+        handler.onNodeDown(node);
+    }
+
+    // Outbound link to one node.
+    protected class Peer {
+        final int node;
+        private final InetSocketAddress address;
+        // Guarded by this; null while the link is down.
+        private Socket socket;
+        protected OutputStream out;
+
+        Peer(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        void start() {
+            daemon(this::connectLoop, "bus-link-" + node);
+        }
+
+        // Sends one frame; false if the link is down.
+        synchronized boolean offer(byte[] frame) {
+            if (out == null) {
+                return false;
+            }
+            try {
+                out.write(frame);
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                disconnect(out);
+                return false;
+            }
+        }
+
+        // Closes the link if it still uses the given stream (any link for null).
+        synchronized void disconnect(OutputStream stream) {
+            if (out == null || (stream != null && stream != out)) {
+                return;
+            }
+            out = null;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            System.out.println("Bus: link to node " + node + " lost.");
+        }
+
+        private void connectLoop() {
+            while (!closed) {
+                if (!isConnected()) {
+                    try {
+                        connect();
+                    } catch (IOException e) {
+                        // Not up yet; try again shortly.
+                    }
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized boolean isConnected() {
+            return out != null;
+        }
+
+        private void connect() throws IOException {
+            Socket s = new Socket();
+            try {
+                s.connect(address, CONNECT_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                OutputStream stream = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+                synchronized (this) {
+                    stream.write(BinaryProtocol.encode(NODE_HELLO, nodeId, 0, ""));
+                    for (byte[] frame : handler.onConnected(node)) {
+                        stream.write(frame);
+                    }
+                    stream.flush();
+                    socket = s;
+                    out = stream;
+                    connected();
+                }
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+        }
+
+        // Called with the link locked once it is up.
+        protected void connected() {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+// Server code as seen by the JMH benchmarks. JMH only accepts benchmarks in a named package,
+// and a named package cannot refer to the server's classes in the default package, so the
+// benchmarks in package bench reach them through these methods (see bench.Fixtures) and only
+// ever hold java.util.function values.
+public final class BenchmarkFixtures {
+    private static File logDirectory;
+
+    private BenchmarkFixtures() {
+    }
+
+    public static UnaryOperator<String> encryptor() {
+        return ChatServer::encrypt;
+    }
+
+    public static UnaryOperator<String> decryptor() {
+        return ChatServer::decrypt;
+    }
+
+    // Opens the chat log in a fresh temporary directory. Every fixture below needs it.
+    public static void openLog(String durability) throws IOException {
+        logDirectory = Files.createTempDirectory("chat-bench-log").toFile();
+        ChatServer.openChatLog(logDirectory, ChatLogWriter.Durability.parse(durability), 1000);
+    }
+
+    // Flushes and closes the log, then deletes its directory.
+    public static void closeLog() throws IOException {
+        ChatServer.closeChatLog();
+        try (Stream<java.nio.file.Path> files = Files.walk(logDirectory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    // Appends lines to one user's log the way the server does.
+    public static Consumer<String> logger(int userId) {
+        return line -> ChatServer.logMessage(userId, line);
+    }
+
+    // Connects the given number of fake clients and returns a group message sender for the
+    // first of them. The fake connections only encode what they are sent.
+    public static Consumer<String> broadcaster(int recipients) {
+        int senderId = -1;
+        for (int i = 0; i < recipients; i++) {
+            int userId = quietly(() -> ChatServer.register(new FakeConnection())).userId();
+            if (senderId < 0) {
+                senderId = userId;
+            }
+        }
+        int from = senderId;
+        return message -> ChatServer.broadcastMessage(message, from);
+    }
+
+    // Fills one user's log with the given number of lines and returns a task that replays it
+    // as a reconnecting client sees it: the latest page only, or every page via \more.
+    public static Runnable historyReplay(int lines, boolean everyPage) {
+        FakeConnection connection = new FakeConnection();
+        ChatServer.ClientHandler handler = quietly(() -> ChatServer.register(connection));
+        int userId = handler.userId();
+        for (int i = 0; i < lines; i++) {
+            ChatServer.logMessage(userId, ChatServer.encrypt("You: (@" + (userId + 1) + ") history line " + i));
+        }
+        return () -> {
+            handler.onConnect();
+            while (everyPage && connection.last.endsWith("type \\more to load them)")) {
+                handler.handleLine("\\more");
+            }
+        };
+    }
+
+    private static <T> T quietly(java.util.function.Supplier<T> action) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return action.get();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    // Stands in for a socket: encodes each message as a writer would and keeps the last line.
+    private static final class FakeConnection implements ClientConnection {
+        long bytes;
+        String last = "";
+
+        public void send(OutboundMessage message) {
+            bytes += message.bytes().length;
+            last = message.text();
+        }
+
+        public void sendAndWait(OutboundMessage message) {
+            send(message);
+        }
+
+        public int queuedMessages() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Group message fan-out (ChatServer.broadcastMessage) to a number of connected fake clients,
+// including encryption and handing the message to the log writer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private Consumer<String> broadcast;
+
+    @Setup
+    public void setUp() {
+        Fixtures.call("openLog", "periodic");
+        broadcast = Fixtures.call("broadcaster", recipients);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.call("closeLog");
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broadcast.accept("is anyone up for lunch?");
+    }
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Log line encryption and decryption (ChatServer.encrypt/decrypt) by message length.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({"32", "256", "4096"})
+    public int length;
+
+    private UnaryOperator<String> encrypt;
+    private UnaryOperator<String> decrypt;
+    private String line;
+    private String encrypted;
+
+    @Setup
+    public void setUp() {
+        encrypt = Fixtures.call("encryptor");
+        decrypt = Fixtures.call("decryptor");
+        StringBuilder text = new StringBuilder("[1000] ");
+        while (text.length() < length) {
+            text.append("hello group ");
+        }
+        line = text.substring(0, length);
+        encrypted = encrypt.apply(line);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return encrypt.apply(line);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return decrypt.apply(encrypted);
+    }
+}
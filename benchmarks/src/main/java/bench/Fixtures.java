@@ -0,0 +1,27 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// Calls a static method of BenchmarkFixtures, which lives in the default package with the
+// server code and so cannot be named from here.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T call(String name, Object... args) {
+        try {
+            for (Method method : Class.forName("BenchmarkFixtures").getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                    return (T) method.invoke(null, args);
+                }
+            }
+            throw new IllegalArgumentException("No fixture " + name + " taking " + args.length + " arguments");
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Fixture " + name + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Fixture " + name + " unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// History replay for one user by log size: the page sent on connect, and every page as a
+// client paging back with \more to the start would read them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int lines;
+
+    private Runnable latestPage;
+    private Runnable everyPage;
+
+    @Setup
+    public void setUp() {
+        Fixtures.call("openLog", "periodic");
+        latestPage = Fixtures.call("historyReplay", lines, false);
+        everyPage = Fixtures.call("historyReplay", lines, true);
+        latestPage.run(); // Waits for the log writer to finish the history.
+        everyPage.run();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.call("closeLog");
+    }
+
+    @Benchmark
+    public void connect() {
+        latestPage.run();
+    }
+
+    @Benchmark
+    public void replayAll() {
+        everyPage.run();
+    }
+}
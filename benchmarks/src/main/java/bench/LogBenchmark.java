@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ChatServer.logMessage throughput. The writer's queue is bounded, so once it fills the
+// score is what the log writer thread sustains, fsync policy included.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LogBenchmark {
+    @Param({"periodic", "batch"})
+    public String durability;
+
+    private Consumer<String> log;
+    private String line;
+
+    @Setup
+    public void setUp() {
+        Fixtures.call("openLog", durability);
+        log = Fixtures.call("logger", 1000);
+        line = Fixtures.<java.util.function.UnaryOperator<String>>call("encryptor").apply("You: (@1001) see you at eight");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.call("closeLog");
+    }
+
+    @Benchmark
+    public void logMessage() {
+        log.accept(line);
+    }
+}
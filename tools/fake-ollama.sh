@@ -0,0 +1,19 @@
+#!/bin/sh
+# Stand-in for the ollama CLI, for exercising the AI queue without a model:
+#
+#   java ChatServer --ai-command=tools/fake-ollama.sh
+#
+# Called as "fake-ollama.sh run <model> <prompt>". Prints a short reply line by line with a
+# pause between lines (FAKE_OLLAMA_DELAY seconds, default 0.5) so streaming, queue positions
+# and \cancel can be observed.
+model="$2"
+prompt="$3"
+delay="${FAKE_OLLAMA_DELAY:-0.5}"
+
+echo "<think>"
+echo "Thinking about: $prompt"
+echo "</think>"
+sleep "$delay"
+echo "[$model] You asked: $prompt"
+sleep "$delay"
+echo "That is all I know."